@@ -0,0 +1,107 @@
+package nio;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.TimeUnit;
+
+// рассылка сообщения по комнате, как в broadcastToRoom, плюс отправка очередей,
+// как ее делают реакторы. вместо сокетов - канал, который принимает все байты сразу
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BroadcastBenchmark {
+    @Param({"1", "10", "100", "1000", "10000"})
+    public int roomSize;
+
+    private OutboundQueue[] queues;
+    private final GatheringByteChannel sink = new NullChannel();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        queues = new OutboundQueue[roomSize];
+        for (int i = 0; i < roomSize; i++) {
+            queues[i] = new OutboundQueue(Integer.MAX_VALUE, 0, OutboundQueue.OverflowPolicy.DROP, 0);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (OutboundQueue queue : queues) {
+            queue.clear();
+        }
+    }
+
+    @Benchmark
+    public void fanOut() throws IOException {
+        SharedFrame frame = SharedFrame.encode(Protocol.MessageType.MESSAGE, "[аня] привет всем в комнате", false);
+        for (OutboundQueue queue : queues) {
+            queue.offer(frame);
+        }
+        frame.release();
+        for (OutboundQueue queue : queues) {
+            queue.flushTo(sink, Long.MAX_VALUE);
+        }
+    }
+
+    // то же, но 16 сообщений подряд до отправки - очереди копятся, как при нагрузке
+    @Benchmark
+    @OperationsPerInvocation(16)
+    public void fanOutBurst() throws IOException {
+        for (int i = 0; i < 16; i++) {
+            SharedFrame frame = SharedFrame.encode(Protocol.MessageType.MESSAGE, "[аня] привет всем в комнате", false);
+            for (OutboundQueue queue : queues) {
+                queue.offer(frame);
+            }
+            frame.release();
+        }
+        for (OutboundQueue queue : queues) {
+            queue.flushTo(sink, Long.MAX_VALUE);
+        }
+    }
+
+    // канал в памяти, который "отправляет" все сразу
+    static final class NullChannel implements GatheringByteChannel {
+        @Override
+        public int write(ByteBuffer src) {
+            int written = src.remaining();
+            src.position(src.limit());
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long written = 0;
+            for (int i = offset; i < offset + length; i++) {
+                written += write(srcs[i]);
+            }
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
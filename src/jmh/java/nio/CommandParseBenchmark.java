@@ -0,0 +1,75 @@
+package nio;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// разбор команд клиента, как в Reactor.processMessage:
+// одно чтение из сокета приносит commandsPerRead команд MESSAGE
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CommandParseBenchmark {
+    @Param({"1", "16", "64"})
+    public int commandsPerRead;
+
+    @Param({"text", "binary"})
+    public String protocol;
+
+    private FrameDecoder decoder;
+    private byte[] input;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        decoder = new FrameDecoder(65536);
+        if ("binary".equals(protocol)) {
+            decoder.switchToBinary();
+        }
+        byte[] body = "привет, это обычное сообщение в чате".getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (int i = 0; i < commandsPerRead; i++) {
+            if (decoder.isBinary()) {
+                bytes.write(Protocol.MESSAGE);
+                Protocol.writeVarint(bytes, body.length);
+                bytes.write(body);
+            } else {
+                bytes.write("MESSAGE:".getBytes(StandardCharsets.UTF_8));
+                bytes.write(body);
+                bytes.write('\n');
+            }
+        }
+        input = bytes.toByteArray();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        decoder.release();
+    }
+
+    @Benchmark
+    public int parse(Blackhole blackhole) {
+        ByteBuffer buffer = decoder.getBuffer();
+        buffer.put(input);
+        int commands = 0;
+        while (decoder.next()) {
+            blackhole.consume(decoder.getOpcode());
+            blackhole.consume(decoder.getText());
+            commands++;
+        }
+        return commands;
+    }
+}
@@ -0,0 +1,46 @@
+package nio;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// сборка строки списка комнат, как в sendRoomList, и ее кодирование в кадр
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RoomListBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int roomCount;
+
+    private final List<Room> rooms = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        for (int i = 0; i < roomCount; i++) {
+            rooms.add(new Room(i + 1, "комната-" + i));
+        }
+    }
+
+    @Benchmark
+    public String format() {
+        return ChatServerNio.formatRoomList(rooms);
+    }
+
+    @Benchmark
+    public int formatAndEncode() {
+        SharedFrame frame = SharedFrame.encode(Protocol.MessageType.LIST, ChatServerNio.formatRoomList(rooms), false);
+        int size = frame.size();
+        frame.release();
+        return size;
+    }
+}
@@ -0,0 +1,70 @@
+package nio;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// решает, принимать ли новое подключение: общий лимит открытых соединений,
+// лимит на один адрес и темп приема. считаются все открытые соединения,
+// в том числе еще не представившиеся.
+// admit и throttleAccept вызывает поток акцептора, release - владельцы соединений при закрытии
+public class AdmissionController {
+    private final int maxConnections;
+    // 0 - без лимита на адрес
+    private final int maxPerAddress;
+    private final AtomicInteger connections = new AtomicInteger();
+    // адрес - открытых соединений с него, адреса без соединений удаляются
+    private final ConcurrentMap<InetAddress, Integer> perAddress = new ConcurrentHashMap<>();
+    // темп приема, null - без ограничения. только у акцептора
+    private final TokenBucket acceptRate;
+
+    public AdmissionController(int maxConnections, int maxPerAddress, int acceptRate, int acceptBurst) {
+        this.maxConnections = maxConnections;
+        this.maxPerAddress = maxPerAddress;
+        this.acceptRate = acceptRate > 0 ? new TokenBucket(acceptRate, acceptBurst, System.nanoTime()) : null;
+    }
+
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    // ждет, пока темп позволит принять следующее подключение.
+    // пока акцептор ждет, новые подключения копятся в очереди ядра (backlog), а не у нас
+    public void throttleAccept() throws InterruptedException {
+        if (acceptRate == null) {
+            return;
+        }
+        long wait;
+        while ((wait = acceptRate.nanosToNextToken(System.nanoTime())) > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        acceptRate.tryTake(System.nanoTime());
+    }
+
+    // false - лимит исчерпан, соединение нужно закрыть. при true соединение обязательно release
+    public boolean admit(InetAddress address) {
+        if (connections.incrementAndGet() > maxConnections) {
+            connections.decrementAndGet();
+            return false;
+        }
+        if (maxPerAddress > 0 && perAddress.merge(address, 1, Integer::sum) > maxPerAddress) {
+            releaseAddress(address);
+            connections.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    public void release(InetAddress address) {
+        if (maxPerAddress > 0) {
+            releaseAddress(address);
+        }
+        connections.decrementAndGet();
+    }
+
+    private void releaseAddress(InetAddress address) {
+        perAddress.computeIfPresent(address, (key, count) -> count == 1 ? null : count - 1);
+    }
+}
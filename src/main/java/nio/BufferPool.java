@@ -0,0 +1,188 @@
+package nio;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// пул direct-буферов для чтения, очередей отправки и рассылки.
+// буферы разбиты на классы по размеру; у каждого платформенного потока есть свой небольшой кэш,
+// а лишние буферы уходят в общий список, откуда их берут другие потоки.
+// виртуальные потоки живут недолго и их много, поэтому они работают сразу с общим списком.
+// в устойчивом режиме сервер почти не выделяет новую память
+public final class BufferPool {
+    // размеры буферов, запрос округляется вверх до ближайшего класса
+    private static final int[] SIZE_CLASSES = {256, 1024, 4096, 16384, 65536};
+    private static final int THREAD_CACHE_SIZE = 64;
+
+    private static final BufferPool SHARED = new BufferPool(
+            Integer.getInteger("chat.pool.maxPerClass", 1024),
+            Boolean.getBoolean("chat.pool.debug"));
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final int maxPerClass;
+    private final boolean debug;
+    private final Queue<ByteBuffer>[] freeLists;
+    private final AtomicInteger[] freeCounts;
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ThreadLocal<ArrayDeque<ByteBuffer>[]> threadCaches = ThreadLocal.withInitial(() -> {
+        ArrayDeque<ByteBuffer>[] caches = new ArrayDeque[SIZE_CLASSES.length];
+        for (int i = 0; i < caches.length; i++) {
+            caches[i] = new ArrayDeque<>(THREAD_CACHE_SIZE);
+        }
+        return caches;
+    });
+
+    // метрики
+    private final LongAdder threadCacheHits = new LongAdder();
+    private final LongAdder sharedHits = new LongAdder();
+    private final LongAdder misses = new LongAdder(); // пришлось выделить новый буфер
+    private final LongAdder unpooled = new LongAdder(); // запрос больше самого большого класса
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int maxPerClass, boolean debug) {
+        this.maxPerClass = maxPerClass;
+        this.debug = debug;
+        this.freeLists = new Queue[SIZE_CLASSES.length];
+        this.freeCounts = new AtomicInteger[SIZE_CLASSES.length];
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            freeLists[i] = new ConcurrentLinkedQueue<>();
+            freeCounts[i] = new AtomicInteger();
+        }
+    }
+
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    // буфер емкостью не меньше minCapacity, очищенный и в режиме записи
+    public ByteBuffer acquire(int minCapacity) {
+        int sizeClass = sizeClassFor(minCapacity);
+        if (sizeClass < 0) {
+            unpooled.increment();
+            return ByteBuffer.allocateDirect(minCapacity);
+        }
+        acquired.increment();
+        ByteBuffer buffer = Thread.currentThread().isVirtual() ? null : threadCaches.get()[sizeClass].pollLast();
+        if (buffer != null) {
+            threadCacheHits.increment();
+        } else if ((buffer = freeLists[sizeClass].poll()) != null) {
+            freeCounts[sizeClass].decrementAndGet();
+            sharedHits.increment();
+        } else {
+            misses.increment();
+            return ByteBuffer.allocateDirect(SIZE_CLASSES[sizeClass]);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    // вернуть буфер в пул, после этого пользоваться им нельзя
+    public void release(ByteBuffer buffer) {
+        int sizeClass = classOfCapacity(buffer.capacity());
+        if (sizeClass < 0 || !buffer.isDirect()) {
+            // не из пула - его заберет сборщик мусора
+            return;
+        }
+        released.increment();
+        if (!Thread.currentThread().isVirtual()) {
+            ArrayDeque<ByteBuffer> cache = threadCaches.get()[sizeClass];
+            if (cache.size() < THREAD_CACHE_SIZE) {
+                cache.addLast(buffer);
+                return;
+            }
+        }
+        if (freeCounts[sizeClass].incrementAndGet() <= maxPerClass) {
+            freeLists[sizeClass].add(buffer);
+        } else {
+            freeCounts[sizeClass].decrementAndGet();
+        }
+    }
+
+    // в отладочном режиме следит, что владелец вернул буфер до того, как стал мусором.
+    // вне отладки возвращает null
+    public LeakTracker track(Object owner) {
+        if (!debug) {
+            return null;
+        }
+        LeakTracker tracker = new LeakTracker(leaks);
+        tracker.cleanable = CLEANER.register(owner, tracker);
+        return tracker;
+    }
+
+    public long getThreadCacheHits() {
+        return threadCacheHits.sum();
+    }
+
+    public long getSharedHits() {
+        return sharedHits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getUnpooled() {
+        return unpooled.sum();
+    }
+
+    // сколько буферов сейчас выдано и не возвращено
+    public long getOutstanding() {
+        return acquired.sum() - released.sum();
+    }
+
+    public long getLeaks() {
+        return leaks.sum();
+    }
+
+    private static int sizeClassFor(int capacity) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (capacity <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int classOfCapacity(int capacity) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (capacity == SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // запоминает, где был выделен буфер, и сообщает об утечке,
+    // если владельца собрали, а close() так и не вызвали
+    public static final class LeakTracker implements Runnable {
+        private final Throwable origin = new Throwable("буфер выделен здесь");
+        private final LongAdder leaks;
+        private volatile boolean closed = false;
+        private Cleaner.Cleanable cleanable;
+
+        private LeakTracker(LongAdder leaks) {
+            this.leaks = leaks;
+        }
+
+        public void close() {
+            closed = true;
+            cleanable.clean();
+        }
+
+        @Override
+        public void run() {
+            if (!closed) {
+                leaks.increment();
+                // стек места, где буфер был взят, печатается вместе с записью
+                Log.error("утечка буфера: владелец удален без возврата буфера в пул", origin);
+            }
+        }
+    }
+}
@@ -2,23 +2,32 @@ package nio;
 
 import ui.RoomWindow;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ChatClient {
-    private Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;
+    // -Dchat.protocol=binary включает бинарный протокол, если сервер его поддерживает
+    private static final boolean PREFER_BINARY = "binary".equalsIgnoreCase(System.getProperty("chat.protocol", "text"));
+
+    // сеть: команды уходят через очередь транспорта, вызывающий поток не ждет сервер
+    private ClientTransport transport;
     private String clientName;
     private String currentRoom;
-    private boolean connected = false;
+    private volatile boolean connected = false;
+    // договорились с сервером о бинарном протоколе
+    private boolean binary = false;
+    // в бинарном протоколе комнаты заходят по номеру: название - номер из последнего списка
+    private final Map<String, Integer> roomIds = new ConcurrentHashMap<>();
+    // комната, номер которой еще не пришел в списке
+    private volatile String pendingJoin;
+    // номер самого раннего полученного сообщения истории текущей комнаты, -1 если истории не было
+    private volatile long oldestHistorySeq = -1;
     private final List<MessageListener> messageListeners = new ArrayList<>();
 
     // интерфейс для слушателей сообщений
@@ -26,6 +35,11 @@ public class ChatClient {
         void onMessageReceived(String message); // сообщение от сервера
         void onConnectionLost(String reason); // соединение с сервером прервано
         void onRoomListReceived(List<String> rooms); // получен список комнат
+
+        // изменения списка после subscribeRoomList(): новые или изменившиеся комнаты в виде "название(число)".
+        // кто не подписывается, может не реализовывать
+        default void onRoomListUpdated(List<String> changed) {
+        }
     }
 
     // методы для регистрации слушателей
@@ -58,6 +72,12 @@ public class ChatClient {
         }
     }
 
+    private void notifyRoomListUpdated(List<String> changed) {
+        for (MessageListener listener : messageListeners) {
+            listener.onRoomListUpdated(changed);
+        }
+    }
+
     public static void main(String[] args) {
         ChatClient client = new ChatClient();
         client.showConnectWindow();
@@ -65,38 +85,87 @@ public class ChatClient {
 
     public boolean connectToServer(String address, int port) {
         try {
-            socket = new Socket(address, port);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-            out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
-            connected = true;
-            System.out.println("вы подключились к серверу " + address + ":" + port);
-            startMessageReader();
-            String prompt = in.readLine();
+            transport = ClientTransport.connect(address, port);
+            Log.info("вы подключились к серверу ", address, ":", port);
+            String prompt = transport.readHandshakeLine();
             if (prompt != null && prompt.startsWith("SYSTEM:")) {
-                System.out.println("cервер: " + prompt.substring(7));
+                Log.info("cервер: ", prompt.substring(7));
             }
+            if (PREFER_BINARY) {
+                negotiateBinary();
+            }
+            connected = true;
+            transport.start(binary, new ServerReceiver());
             return true;
         } catch (IOException e) {
-            System.out.println("не удалось подключиться: " + e.getMessage());
+            Log.warn("не удалось подключиться: ", e.getMessage());
             return false;
         }
     }
 
+    // просим сервер перейти на бинарный протокол, старый сервер ответит "неизвестная команда"
+    private void negotiateBinary() throws IOException {
+        transport.writeHandshakeLine(Protocol.BINARY_HANDSHAKE);
+        String reply = transport.readHandshakeLine();
+        if (Protocol.BINARY_HANDSHAKE.equals(reply)) {
+            binary = true;
+            Log.info("используется бинарный протокол");
+        } else {
+            Log.warn("сервер не поддерживает бинарный протокол: ", reply);
+        }
+    }
+
+    // команда серверу в выбранном протоколе: кодируем здесь и ставим в очередь транспорта
+    private void sendCommand(byte opcode, String data) {
+        if (!binary) {
+            transport.send((Protocol.commandName(opcode) + ":" + data + "\n").getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        byte[] body = data.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(1 + Protocol.MAX_VARINT_SIZE + body.length);
+        frame.write(opcode);
+        writeVarint(frame, body.length);
+        frame.writeBytes(body);
+        transport.send(frame.toByteArray());
+    }
+
+    private void sendBinaryJoin(int roomId) {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(1 + 2 * Protocol.MAX_VARINT_SIZE);
+        frame.write(Protocol.JOIN);
+        writeVarint(frame, Protocol.varintSize(roomId));
+        writeVarint(frame, roomId);
+        transport.send(frame.toByteArray());
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        try {
+            Protocol.writeVarint(out, value);
+        } catch (IOException e) {
+            // в память запись не падает
+            throw new IllegalStateException(e);
+        }
+    }
+
     public boolean authenticate(String name) {
         try {
             clientName = name;
-            out.println("NAME:" + clientName);
-            System.out.println(clientName + ", вы зарегистрированы");
+            sendCommand(Protocol.NAME, clientName);
+            Log.info(clientName, ", вы зарегистрированы");
             return true;
         } catch (Exception e) {
-            System.out.println("ошибка при регистрации: " + e.getMessage());
+            Log.warn("ошибка при регистрации: ", e.getMessage());
             return false;
         }
     }
 
     private void parseRoomList(String listStr) {
+        notifyRoomListReceived(splitRoomList(listStr)); // передаем полученный списко слушателям
+    }
+
+    private static List<String> splitRoomList(String listStr) {
         // получаем от сервера сообщение типа
         // LIST:Комната1(2);Комната2(0);Комната3(1);
+        // (в ROOMS в таком же виде только изменившиеся комнаты)
         List<String> rooms = new ArrayList<>();
         if (listStr != null && !listStr.isEmpty()) {
             String[] roomEntries = listStr.split(";");
@@ -107,84 +176,205 @@ public class ChatClient {
                 }
             }
         }
-        notifyRoomListReceived(rooms); // передаем полученный списко слушателям
-    }
-
-    // слушатель серверных сообщений
-    private void startMessageReader() {
-        Thread readerThread = new Thread(() -> {
-            try {
-                String line;
-                while (connected && (line = in.readLine()) != null) {
-                    System.out.println("сообщение от сервера: " + line);
-                    // обрабатываем разные типы сообщений
-                    if (line.startsWith("LIST:")) {
-                        parseRoomList(line.substring(5));
-                    } else if (line.startsWith("SYSTEM:")) {
-                        // системные сообщения тоже показываем в чате (кто-то покинул/присоединился к чату)
-                        notifyMessageReceived(line.substring(7));
-                    } else if (line.startsWith("MESSAGE:")) {
-                        notifyMessageReceived(line.substring(8));
-                    } else {
-                        // старый формат или другие сообщения
-                        notifyMessageReceived(line);
-                    }
-                }
-            } catch (IOException e) {
-                if (connected) {
-                    notifyConnectionLost("соединение с сервером разорвано");
-                    connected = false;
-                }
+        return rooms;
+    }
+
+    private void parseBinaryRoomList(byte[] body) {
+        notifyRoomListReceived(decodeBinaryRoomList(body));
+        joinPendingRoom();
+    }
+
+    // бинарный список: записи [номер][длина названия][название][кол-во клиентов],
+    // номера комнат запоминаем для JOIN
+    private List<String> decodeBinaryRoomList(byte[] body) {
+        List<String> rooms = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(body);
+        int index = 0;
+        while (index < body.length) {
+            int roomId = Protocol.getVarint(buffer, index, body.length);
+            index += Protocol.varintSize(roomId);
+            int nameLength = Protocol.getVarint(buffer, index, body.length);
+            index += Protocol.varintSize(nameLength);
+            String roomName = new String(body, index, nameLength, StandardCharsets.UTF_8);
+            index += nameLength;
+            int count = Protocol.getVarint(buffer, index, body.length);
+            index += Protocol.varintSize(count);
+
+            roomIds.put(roomName, roomId);
+            // для окон список выглядит так же, как в текстовом протоколе
+            rooms.add(roomName + "(" + count + ")");
+        }
+        return rooms;
+    }
+
+    // изменения списка: в том же виде, что и полный список, только изменившиеся комнаты
+    private void parseRoomListUpdate(String delta) {
+        notifyRoomListUpdated(splitRoomList(delta));
+    }
+
+    private void parseBinaryRoomListUpdate(byte[] body) {
+        notifyRoomListUpdated(decodeBinaryRoomList(body));
+        joinPendingRoom();
+    }
+
+    // номер комнаты, в которую хотели войти, наконец известен
+    private void joinPendingRoom() {
+        String roomName = pendingJoin;
+        if (roomName != null && roomIds.containsKey(roomName)) {
+            pendingJoin = null;
+            sendBinaryJoin(roomIds.get(roomName));
+        }
+    }
+
+    // слушатель серверных сообщений, вызывается в потоке транспорта
+    private class ServerReceiver implements ClientTransport.Receiver {
+        @Override
+        public void onLine(String line) {
+            Log.debug("сообщение от сервера: ", line);
+            // обрабатываем разные типы сообщений
+            if (line.startsWith("LIST:")) {
+                parseRoomList(line.substring(5));
+            } else if (line.startsWith("ROOMS:")) {
+                parseRoomListUpdate(line.substring(6));
+            } else if (line.startsWith("SYSTEM:")) {
+                // системные сообщения тоже показываем в чате (кто-то покинул/присоединился к чату)
+                notifyMessageReceived(line.substring(7));
+            } else if (line.startsWith("MESSAGE:")) {
+                notifyMessageReceived(line.substring(8));
+            } else if (line.startsWith("HISTORY:")) {
+                onHistoryReceived(line.substring(8));
+            } else if (line.startsWith("PING:")) {
+                sendCommand(Protocol.PONG, "");
+            } else {
+                // старый формат или другие сообщения
+                notifyMessageReceived(line);
             }
-        });
+        }
+
+        // кадры [код][varint длина][тело]
+        @Override
+        public void onFrame(int opcode, byte[] body) {
+            Protocol.MessageType type = Protocol.MessageType.fromOpcode(opcode);
+            if (type == null) {
+                Log.warn("неизвестный кадр от сервера: ", opcode);
+                return;
+            }
+            switch (type) {
+                case LIST:
+                    parseBinaryRoomList(body);
+                    break;
+                case ROOMS:
+                    parseBinaryRoomListUpdate(body);
+                    break;
+                case SYSTEM:
+                case MESSAGE:
+                    String text = new String(body, StandardCharsets.UTF_8);
+                    Log.debug("сообщение от сервера: ", text);
+                    notifyMessageReceived(text);
+                    break;
+                case HISTORY:
+                    onHistoryReceived(new String(body, StandardCharsets.UTF_8));
+                    break;
+                case PING:
+                    // сервер проверяет, что мы на связи, иначе отключит молчащего клиента
+                    sendCommand(Protocol.PONG, "");
+                    break;
+            }
+        }
 
-        readerThread.setDaemon(true); // после прерывания этого потока весь main прерывается
-        readerThread.start();
+        @Override
+        public void onClosed(String reason) {
+            if (connected) {
+                connected = false;
+                notifyConnectionLost(reason);
+            }
+        }
+    }
+
+    // сообщение истории: "номер [имя] текст", показываем как обычное
+    private void onHistoryReceived(String entry) {
+        int separator = entry.indexOf(' ');
+        try {
+            long seq = Long.parseLong(entry.substring(0, Math.max(separator, 0)));
+            if (oldestHistorySeq < 0 || seq < oldestHistorySeq) {
+                oldestHistorySeq = seq;
+            }
+        } catch (NumberFormatException e) {
+            // без номера листать дальше не получится, но сообщение покажем
+        }
+        notifyMessageReceived(entry.substring(separator + 1));
     }
 
     public void sendMessage(String text) {
         if (connected) {
-            out.println("MESSAGE:" + text);
+            sendCommand(Protocol.MESSAGE, text);
         }
     }
 
     public void createRoom(String roomName) {
         if (connected) {
-            out.println("CREATE:" + roomName);
+            sendCommand(Protocol.CREATE, roomName);
         }
     }
 
     public void joinRoom(String roomName) {
         if (connected) {
-            out.println("JOIN:" + roomName);
+            if (!binary) {
+                sendCommand(Protocol.JOIN, roomName);
+            } else if (roomIds.containsKey(roomName)) {
+                sendBinaryJoin(roomIds.get(roomName));
+            } else {
+                // комната только что создана и ее номера еще нет - войдем, когда придет список
+                pendingJoin = roomName;
+                requestRoomList();
+            }
             currentRoom = roomName;
+            oldestHistorySeq = -1;
+        }
+    }
+
+    // просим у сервера страницу истории до самого раннего уже полученного сообщения
+    public void requestHistory() {
+        if (connected) {
+            long before = oldestHistorySeq;
+            sendCommand(Protocol.HISTORY, before < 0 ? "" : Long.toString(before));
         }
     }
 
     public void requestRoomList() {
         if (connected) {
-            out.println("LIST:");
+            sendCommand(Protocol.LIST, "");
+        }
+    }
+
+    // полный список сейчас, а дальше только изменения (onRoomListUpdated) без запросов
+    public void subscribeRoomList() {
+        if (connected) {
+            sendCommand(Protocol.ROOMS, "SUBSCRIBE");
+        }
+    }
+
+    public void unsubscribeRoomList() {
+        if (connected) {
+            sendCommand(Protocol.ROOMS, "UNSUBSCRIBE");
         }
     }
 
     public void disconnect() {
-        connected = false;
-        try {
-            if (socket != null && !socket.isClosed()) {
-                out.println("LEAVE:");
-                socket.close();
-            }
-        } catch (IOException e) {
-            // игнорируем ошибки при закрытии
+        if (connected) {
+            connected = false;
+            // транспорт закроет соединение, когда отправит все из очереди, включая LEAVE
+            sendCommand(Protocol.LEAVE, "");
+            transport.close();
         }
-        System.out.println("вы отключились от чата. до свидания!");
+        Log.info("вы отключились от чата. до свидания!");
         notifyConnectionLost("вы отключились от чата");
     }
 
 
-    public void showAuthWindow() {
+    public void showAuthWindow(String address, int port) {
         javax.swing.SwingUtilities.invokeLater(() -> {
-            ui.AuthWindow authWindow = new ui.AuthWindow(this);
+            ui.AuthWindow authWindow = new ui.AuthWindow(this, address, port);
             authWindow.setVisible(true);
         });
     }
@@ -3,58 +3,149 @@ package nio;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 public class ChatServerNio {
-    // имя клиента - канал
-    private static final Map<SocketChannel, String> clientNames = new HashMap<>();
-    // комната - множество каналов в этой комнате
-    private static final Map<String, Set<SocketChannel>> rooms = new HashMap<>();
-    // канал - текущая комната клиента
-    private static final Map<SocketChannel, String> clientRooms = new HashMap<>();
-    private static final int MAX_CLIENTS = 50;
+    // клиенты и комнаты, общие для всех реакторов
+    private static final RoomRegistry registry = new RoomRegistry();
+    // подписчики на изменения списка комнат
+    private static final RoomListPublisher roomListPublisher =
+            new RoomListPublisher(ServerConfig.ROOM_LIST_PUSH_INTERVAL);
+    private static final AdmissionController admission = new AdmissionController(ServerConfig.MAX_CONNECTIONS,
+            ServerConfig.MAX_CONNECTIONS_PER_ADDRESS, ServerConfig.ACCEPT_RATE, ServerConfig.ACCEPT_BURST);
+    // история комнат на диске, null если выключена
+    private static HistoryStore historyStore;
+    // память под последние сообщения всех комнат
+    private static final RecentMessages.Budget recentBudget = new RecentMessages.Budget(ServerConfig.RECENT_TOTAL_BYTES);
+    private static final ServerMetrics metrics = ServerMetrics.shared();
+    // связь с другими узлами, null если сервер работает один
+    private static Cluster cluster;
+    // checkTimeouts: сроков у соединения больше нет
+    static final long NO_DEADLINE = Long.MIN_VALUE;
+    // причины отключения по срокам собраны заранее, а не на каждое отключение
+    private static final String HANDSHAKE_TIMEOUT_REASON =
+            "клиент не представился за " + ServerConfig.HANDSHAKE_TIMEOUT_MILLIS + " мс, отключаем";
+    private static final String IDLE_TIMEOUT_REASON =
+            "клиент молчит " + ServerConfig.IDLE_TIMEOUT_MILLIS + " мс, отключаем";
 
     public static void main(String[] args) {
         try {
             System.out.println("запуск сервера...");
             int port = askPort();
+            openHistory();
+            metrics.start(registry, recentBudget, ServerConfig.METRICS_INTERVAL);
+            startCluster();
+
+            // в движке nio клиентов обслуживают реакторы, у каждого свой селектор и поток,
+            // в движке virtual - по виртуальному потоку на чтение и на отправку у каждого клиента
+            Reactor[] reactors = null;
+            if (ServerConfig.ENGINE == ServerConfig.Engine.NIO) {
+                reactors = new Reactor[ServerConfig.REACTOR_COUNT];
+                for (int i = 0; i < reactors.length; i++) {
+                    reactors[i] = new Reactor(i);
+                    reactors[i].start();
+                }
+            }
 
-            // открываем серверный канал
+            // открываем серверный канал, он остается блокирующим:
+            // главный поток только принимает подключения и раздает их
             ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
             serverSocketChannel.bind(new InetSocketAddress(port));
 
-            // ставим неблокирующий режим
-            serverSocketChannel.configureBlocking(false);
-
-            Selector selector = Selector.open();
-
-            // регистрируем серверный канал на событие ACCEPT
-            serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
-
-            System.out.println("сервер запущен на порту " + port);
+            if (reactors != null) {
+                Log.info("сервер запущен на порту ", port, ", реакторов: ", reactors.length);
+            } else {
+                Log.info("сервер запущен на порту ", port, ", клиенты на виртуальных потоках");
+            }
 
+            int nextReactor = 0;
             while (true) {
                 try {
-                    // метод select обработает каждый канал,
-                    // где произошло какое-то событие,
-                    // то есть селектор вызовет метод handleSelection
-                    selector.select(key -> handleConnection(key, selector));
+                    admission.throttleAccept();
+                    // принимаем новый клиентский канал
+                    SocketChannel socketChannel = serverSocketChannel.accept();
+
+                    InetAddress address = ((InetSocketAddress) socketChannel.getRemoteAddress()).getAddress();
+                    if (!admission.admit(address)) {
+                        Log.warn("превышен лимит подключений, отклонено подключение с ", address);
+                        metrics.connectionRejected();
+                        socketChannel.close();
+                        continue;
+                    }
+                    metrics.connectionAccepted();
+
+                    if (reactors == null) {
+                        VirtualThreadConnection.start(socketChannel);
+                        continue;
+                    }
+                    socketChannel.configureBlocking(false);
+                    Reactor reactor = chooseReactor(reactors, nextReactor++);
+                    reactor.register(socketChannel);
                 } catch (IOException e) {
-                    System.out.println("ошибка при работе селектора: " + e.getMessage());
+                    Log.warn("ошибка при принятии соединения: ", e.getMessage());
+                } catch (InterruptedException e) {
+                    Log.warn("прием подключений прерван");
+                    return;
                 }
             }
         } catch (IOException e) {
-            System.out.println("ошибка запуска сервера: " + e.getMessage());
+            Log.error("ошибка запуска сервера: ", e.getMessage());
+        }
+    }
+
+    // открывает каталог истории и восстанавливает комнаты прошлого запуска.
+    // у узла кластера свой подкаталог по адресу узла: несколько узлов на одной машине
+    // могут запускаться из одного каталога и не восстанавливают чужие комнаты как свои
+    private static void openHistory() throws IOException {
+        if (ServerConfig.HISTORY_DIR.isEmpty()) {
+            return;
+        }
+        Path directory = Path.of(ServerConfig.HISTORY_DIR);
+        if (ServerConfig.CLUSTER_PORT != 0) {
+            directory = directory.resolve(ServerConfig.CLUSTER_HOST + "-" + ServerConfig.CLUSTER_PORT);
+        }
+        historyStore = new HistoryStore(directory,
+                ServerConfig.HISTORY_SEGMENT_SIZE, ServerConfig.HISTORY_MAX_SEGMENTS);
+        Map<String, RoomHistory> histories = historyStore.recover();
+        for (Map.Entry<String, RoomHistory> entry : histories.entrySet()) {
+            Room room = registry.createRoom(entry.getKey());
+            if (room != null) {
+                room.setHistory(entry.getValue());
+                attachRecentMessages(room, entry.getValue().getNextSeq());
+                metrics.registerRoom(room);
+            }
+        }
+        Log.info("история в каталоге ", directory, ", восстановлено комнат: ", histories.size());
+    }
+
+    private static void startCluster() throws IOException {
+        if (ServerConfig.CLUSTER_PORT == 0) {
+            return;
+        }
+        List<String> seeds = new ArrayList<>();
+        for (String seed : ServerConfig.CLUSTER_SEEDS.split(",")) {
+            if (!seed.isBlank()) {
+                seeds.add(seed.trim());
+            }
+        }
+        cluster = new Cluster(ServerConfig.CLUSTER_HOST + ":" + ServerConfig.CLUSTER_PORT, registry);
+        cluster.start(ServerConfig.CLUSTER_PORT, seeds);
+    }
+
+    private static void attachRecentMessages(Room room, long nextSeq) {
+        if (ServerConfig.HISTORY_REPLAY > 0) {
+            room.setRecentMessages(new RecentMessages(ServerConfig.HISTORY_REPLAY,
+                    ServerConfig.RECENT_ROOM_BYTES, recentBudget, nextSeq));
         }
     }
 
@@ -73,257 +164,760 @@ public class ChatServerNio {
         return port;
     }
 
-    private static void handleConnection(SelectionKey selectionKey, Selector selector) {
-        // selectionKey — объект, который описывает канал и событие
-        if (selectionKey.isAcceptable()) {
-            // если на серверном канале есть клиент, готовый подключиться,
-            // достаем из selectionKey серверный канал
-            ServerSocketChannel serverSocketChannel = (ServerSocketChannel) selectionKey.channel();
-
-            // подключаем клиента к серверному каналу
-            registerNewChannel(selector, serverSocketChannel);
+    private static Reactor chooseReactor(Reactor[] reactors, int counter) {
+        if (ServerConfig.REACTOR_BALANCING == ServerConfig.Balancing.ROUND_ROBIN) {
+            return reactors[Math.floorMod(counter, reactors.length)];
         }
-
-        // если на клиентском канале есть данные для чтения
-        if (selectionKey.isReadable()) {
-            SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
-            processMessage(socketChannel, selector);
+        // реактор, у которого сейчас меньше всего клиентов
+        Reactor leastLoaded = reactors[0];
+        for (Reactor reactor : reactors) {
+            if (reactor.getConnectionCount() < leastLoaded.getConnectionCount()) {
+                leastLoaded = reactor;
+            }
         }
+        return leastLoaded;
     }
 
-    private static void registerNewChannel(Selector selector, ServerSocketChannel serverSocketChannel) {
+    // вызывается владельцем соединения, когда оно готово к работе
+    static void onConnected(Connection connection) {
+        sendSystem(connection, "введите ваше имя:");
         try {
-            // принимаем новый клиентский канал
-            SocketChannel socketChannel = serverSocketChannel.accept();
+            Log.info("новое подключение: ", connection.getChannel().getRemoteAddress());
+        } catch (IOException e) {
+            Log.info("новое подключение: адрес неизвестен");
+        }
+    }
 
-            if (clientNames.size() > MAX_CLIENTS) {
-                System.out.println("превышен лимит клиентов. подключение отклонено");
-                socketChannel.close();
-                return;
+    // проверяет сроки соединения, когда подошел ближайший из них: закрывает тех, кто не представился
+    // или молчит слишком долго, и отправляет PING тем, от кого давно ничего не было.
+    // вызывается владельцем соединения при подключении и из его колеса сроков.
+    // возвращает следующий срок (System.nanoTime) или NO_DEADLINE
+    static long checkTimeouts(Connection connection, long now) {
+        if (connection.isDisconnectRequested()) {
+            return NO_DEADLINE;
+        }
+        long deadline = NO_DEADLINE;
+        if (ServerConfig.HANDSHAKE_TIMEOUT_MILLIS > 0 && !connection.isRegistered()) {
+            long handshakeDeadline = connection.getConnectedAt() + ServerConfig.HANDSHAKE_TIMEOUT_MILLIS * 1_000_000;
+            if (now - handshakeDeadline >= 0) {
+                metrics.connectionTimedOut();
+                connection.disconnect(HANDSHAKE_TIMEOUT_REASON);
+                return NO_DEADLINE;
+            }
+            deadline = handshakeDeadline;
+        }
+        long lastRead = connection.getLastReadAt();
+        if (ServerConfig.IDLE_TIMEOUT_MILLIS > 0) {
+            long idleDeadline = lastRead + ServerConfig.IDLE_TIMEOUT_MILLIS * 1_000_000;
+            if (now - idleDeadline >= 0) {
+                metrics.connectionTimedOut();
+                connection.disconnect(IDLE_TIMEOUT_REASON);
+                return NO_DEADLINE;
             }
+            deadline = earlier(deadline, idleDeadline);
+        }
+        if (ServerConfig.HEARTBEAT_INTERVAL_MILLIS > 0) {
+            long interval = ServerConfig.HEARTBEAT_INTERVAL_MILLIS * 1_000_000;
+            // PING через интервал тишины, а пока ответа нет - повторяем через тот же интервал
+            long pingSentAt = connection.getPingSentAt();
+            long pingAt = (pingSentAt - lastRead > 0 ? pingSentAt : lastRead) + interval;
+            if (now - pingAt >= 0) {
+                sendMessage(connection, Protocol.MessageType.PING, "");
+                connection.setPingSentAt(now);
+                pingAt = now + interval;
+            }
+            deadline = earlier(deadline, pingAt);
+        }
+        return deadline;
+    }
 
-            socketChannel.configureBlocking(false);
+    private static long earlier(long deadline, long other) {
+        return deadline == NO_DEADLINE || other - deadline < 0 ? other : deadline;
+    }
 
-            // регистрируем канал в селекторе,
-            // указываем, что клиентский канал должен читать данные от клиента
-            socketChannel.register(selector, SelectionKey.OP_READ);
+    // выполняет все полные команды, которые уже прочитаны в буфер соединения.
+    // вызывается владельцем соединения после каждого чтения из канала.
+    // IllegalArgumentException - испорченный бинарный кадр
+    static void processCommands(Connection connection) {
+        FrameDecoder decoder = connection.getDecoder();
+        // за одно чтение может прийти несколько команд
+        long readAt = connection.getLastReadAt();
+        while (decoder.next()) {
+            metrics.commandReceived();
+            if (!connection.tryCommand(decoder.getOpcode(), readAt)) {
+                // сверх лимита команды выбрасываем, клиента предупреждаем один раз за серию
+                metrics.commandThrottled();
+                if (connection.markThrottled()) {
+                    sendSystem(connection, " слишком много команд, часть из них не выполнена");
+                }
+                continue;
+            }
+            connection.clearThrottled();
+            processCommand(connection, decoder.getOpcode(), decoder.getText(), decoder.getRoomId());
+        }
+        if (decoder.consumeOverflow()) {
+            sendSystem(connection, " сообщение слишком длинное");
+        }
+    }
 
-            sendMessage(socketChannel, "SYSTEM:введите ваше имя:");
-            System.out.println("новое подключение: " + socketChannel.getRemoteAddress());
-        } catch (IOException e) {
-            System.out.println("ошибка при принятии соединения: " + e.getMessage());
+    // вызывается для каждой полной команды от клиента.
+    // data - тело команды строкой (кроме MESSAGE), roomId - номер комнаты бинарного JOIN
+    static void processCommand(Connection connection, byte opcode, String data, int roomId) {
+        switch (opcode) {
+            case Protocol.NAME:
+                handleName(connection, data);
+                break;
+            case Protocol.CREATE:
+                handleCreate(connection, data);
+                break;
+            case Protocol.JOIN:
+                // в бинарном протоколе комната приходит номером
+                Room room = connection.isBinary() ? registry.getRoomById(roomId) : registry.getRoom(data);
+                handleJoin(connection, room);
+                break;
+            case Protocol.LEAVE:
+                handleLeave(connection);
+                break;
+            case Protocol.MESSAGE:
+                // тело сообщения не декодируется, оно в буфере чтения соединения
+                handleMessage(connection);
+                break;
+            case Protocol.LIST:
+                handleList(connection);
+                break;
+            case Protocol.PROTO:
+                handleProto(connection, data);
+                break;
+            case Protocol.HISTORY:
+                handleHistory(connection, data);
+                break;
+            case Protocol.ROOMS:
+                handleRooms(connection, data);
+                break;
+            case Protocol.PONG:
+                // время последних данных от клиента владелец уже обновил при чтении
+                break;
+            default:
+                sendSystem(connection, " неизвестная команда");
         }
     }
 
-    private static void processMessage(SocketChannel clientChannel, Selector selector) {
-        ByteBuffer buffer = ByteBuffer.allocate(1024);
-        try {
-            int readBytes = clientChannel.read(buffer);
-            if (readBytes == -1) {
-                disconnectClient(clientChannel, selector);
-                return;
-            }
-            if (readBytes > 0) {
-                buffer.flip();
-                byte[] bytes = new byte[readBytes];
-                buffer.get(bytes);
-                String text = new String(bytes, StandardCharsets.UTF_8).trim();
-
-                // парсим протокол сообщений от клиента
-                if (text.contains(":")) {
-                    String[] parts = text.split(":", 2);
-                    String type = parts[0];
-                    String data = parts.length > 1 ? parts[1] : "";
-
-                    switch (type) {
-                        case "NAME":
-                            handleName(clientChannel, data, selector);
-                            break;
-                        case "CREATE":
-                            handleCreate(clientChannel, data, selector);
-                            break;
-                        case "JOIN":
-                            handleJoin(clientChannel, data, selector);
-                            break;
-                        case "LEAVE":
-                            handleLeave(clientChannel, selector);
-                            break;
-                        case "MESSAGE":
-                            handleMessage(clientChannel, data, selector);
-                            break;
-                        case "LIST":
-                            handleList(clientChannel);
-                            break;
-                        default:
-                            sendMessage(clientChannel, "SYSTEM: неизвестная команда");
-                    }
-                }
-            }
-        } catch (IOException e) {
-            System.out.println("ошибка при обработке сообщения: " + e.getMessage());
-            disconnectClient(clientChannel, selector);
+    private static void handleProto(Connection connection, String protocol) {
+        if (connection.isRegistered()) {
+            // до регистрации клиент не получает рассылок по комнатам,
+            // поэтому переключение не перемешает текстовые и бинарные сообщения
+            sendSystem(connection, " протокол выбирается до регистрации");
+            return;
+        }
+        switch (protocol) {
+            case "BINARY":
+                // подтверждение уходит еще текстом, дальше только бинарные кадры
+                SharedFrame ack = SharedFrame.encode(Protocol.BINARY_HANDSHAKE);
+                connection.send(ack);
+                ack.release();
+                connection.switchToBinary();
+                break;
+            case "TEXT":
+                SharedFrame textAck = SharedFrame.encode("PROTO:TEXT");
+                connection.send(textAck);
+                textAck.release();
+                break;
+            default:
+                sendSystem(connection, " неизвестный протокол");
         }
     }
 
-    private static void handleName(SocketChannel clientChannel, String name, Selector selector) {
-        if (clientNames.containsKey(clientChannel)) {
-            sendMessage(clientChannel, "SYSTEM: вы уже зарегистрированы");
+    private static void handleName(Connection connection, String name) {
+        if (!registry.register(connection, name)) {
+            sendSystem(connection, " вы уже зарегистрированы");
             return;
         }
-        clientNames.put(clientChannel, name);
-        System.out.println(name + " подключился");
+        connection.setMessageHeader(messageHeader(name));
+        Log.info(name, " подключился");
         // отправляем список комнат при регистрации (будет пустым, если нет комнат)
-        sendRoomList(clientChannel);
+        sendRoomList(connection);
     }
 
-    private static void handleCreate(SocketChannel clientChannel, String roomName, Selector selector) {
-        if (!clientNames.containsKey(clientChannel)) {
-            sendMessage(clientChannel, "SYSTEM: сначала зарегистрируйтесь");
+    private static void handleCreate(Connection connection, String roomName) {
+        if (!connection.isRegistered()) {
+            sendSystem(connection, " сначала зарегистрируйтесь");
             return;
         }
 
-        if (rooms.containsKey(roomName)) {
-            sendMessage(clientChannel, "SYSTEM: комната уже существует");
+        String clientName = connection.getName();
+        if (cluster != null && !cluster.isOwner(roomName) && registry.getRoom(roomName) == null) {
+            // комнату заводит ее будущий владелец, ответ придет в onRemoteCreated
+            cluster.forwardCreate(connection, roomName, clientName);
+            return;
+        }
+        if (createRoom(roomName, clientName) == null) {
+            sendSystem(connection, " комната уже существует");
             return;
         }
+        onRoomCreated(connection, roomName);
+    }
+
+    // комната этого сервера, null если такая уже есть
+    static Room createRoom(String roomName, String clientName) {
+        Room room = registry.createRoom(roomName);
+        if (room == null) {
+            return null;
+        }
+        metrics.registerRoom(room);
+        takeOwnership(room);
+        Log.info("создана комната: ", roomName, " от ", clientName);
+        roomChanged(room);
+        return room;
+    }
+
+    private static void onRoomCreated(Connection connection, String roomName) {
+        sendSystem(connection, " вы создали комнату: " + roomName);
+        // подписчик узнает о новой комнате из изменений
+        if (!roomListPublisher.isSubscribed(connection)) {
+            sendRoomList(connection);
+        }
+    }
 
-        rooms.put(roomName, new HashSet<>());
-        String clientName = clientNames.get(clientChannel);
-        System.out.println("создана комната: " + roomName + " от " + clientName);
+    // история и последние сообщения нужны только владельцу комнаты
+    static void takeOwnership(Room room) {
+        if (room.getHistory() == null && historyStore != null) {
+            try {
+                room.setHistory(historyStore.create(room.getName()));
+            } catch (IOException e) {
+                Log.warn("не удалось создать историю комнаты ", room.getName(), ": ", e.getMessage());
+            }
+        }
+        if (room.getRecentMessages() == null) {
+            RoomHistory history = room.getHistory();
+            attachRecentMessages(room, history != null ? history.getNextSeq() : 0);
+        }
+        room.setOwned(true);
+    }
 
-        sendMessage(clientChannel, "SYSTEM: вы создали комнату: " + roomName);
-        sendRoomList(clientChannel);
+    // комната переехала на другой узел, участников других узлов теперь считает он
+    static void releaseOwnership(Room room) {
+        room.setOwned(false);
+        room.clearRemoteMembers();
     }
 
-    private static void handleJoin(SocketChannel clientChannel, String roomName, Selector selector) {
-        if (!clientNames.containsKey(clientChannel)) {
-            sendMessage(clientChannel, "SYSTEM: cначала зарегистрируйтесь");
+    // кластер: комната другого узла появилась в списке этого
+    static Room addClusterRoom(String roomName) {
+        Room room = registry.createRoom(roomName);
+        if (room == null) {
+            return registry.getRoom(roomName);
+        }
+        room.setOwned(false);
+        metrics.registerRoom(room);
+        return room;
+    }
+
+    // число участников или состав комнат изменились: подписчикам этого сервера,
+    // а владелец комнаты сообщает новое число остальным узлам
+    static void roomChanged(Room room) {
+        roomListPublisher.roomChanged(room);
+        if (cluster != null && room.isOwned()) {
+            cluster.publishRoom(room);
+        }
+    }
+
+    private static void handleJoin(Connection connection, Room room) {
+        if (!connection.isRegistered()) {
+            sendSystem(connection, " cначала зарегистрируйтесь");
             return;
         }
 
-        if (!rooms.containsKey(roomName)) {
-            sendMessage(clientChannel, "SYSTEM: комната не существует");
+        if (room == null) {
+            sendSystem(connection, " комната не существует");
             return;
         }
 
         // покидаем старую комнату если была
-        handleLeave(clientChannel, selector);
+        handleLeave(connection);
+
+        String clientName = connection.getName();
+        if (!room.isOwned()) {
+            // комната на другом узле: владелец сообщит остальным и пришлет последние сообщения,
+            // а рассылку клиент начнет получать после них (onRemoteJoined)
+            registry.joinPending(connection, room);
+            roomChanged(room);
+            sendSystem(connection, " вы в комнате: " + room.getName());
+            cluster.forwardJoin(connection, room, clientName);
+            Log.info(clientName, " вошел в комнату: ", room.getName());
+            return;
+        }
 
-        // входим в новую
-        rooms.get(roomName).add(clientChannel);
-        clientRooms.put(clientChannel, roomName);
+        sendSystem(connection, " вы в комнате: " + room.getName());
+        joinOwnedRoom(connection, room);
+    }
 
-        String clientName = clientNames.get(clientChannel);
-        broadcastToRoom("SYSTEM:" + clientName + " присоединился к комнате", roomName, clientChannel, selector);
-        sendMessage(clientChannel, "SYSTEM: вы в комнате: " + roomName);
-        System.out.println(clientName + " вошел в комнату: " + roomName);
+    // кластер: запрос на вход вернулся к нам, пока он шел, комната стала нашей.
+    // "вы в комнате" клиент уже получил, когда отправлял запрос
+    static void onForwardedJoin(Connection connection, Room room) {
+        if (connection.getRoom() == room) {
+            joinOwnedRoom(connection, room);
+        }
     }
 
-    private static void handleLeave(SocketChannel clientChannel, Selector selector) {
-        if (clientRooms.containsKey(clientChannel)) {
-            String roomName = clientRooms.get(clientChannel);
-            String clientName = clientNames.get(clientChannel);
+    // вход в свою комнату. граница истории и сам вход - под замком порядка комнаты:
+    // сообщения до границы клиент получит последними сообщениями, а все после нее -
+    // обычной рассылкой, и в очереди они встанут уже после последних сообщений
+    private static void joinOwnedRoom(Connection connection, Room room) {
+        String clientName = connection.getName();
+        synchronized (room.getOrder()) {
+            RoomHistory history = room.getHistory();
+            RecentMessages recent = room.getRecentMessages();
+            // в память сообщение попадает после журнала, поэтому границу берем у нее
+            long backlogEnd = recent != null ? recent.getNextSeq() : history != null ? history.getNextSeq() : 0;
+
+            registry.join(connection, room);
+            broadcastToRoom(Protocol.MessageType.SYSTEM, clientName + " присоединился к комнате", clientName, room,
+                    connection);
+            sendBacklog(connection, history, recent, backlogEnd - ServerConfig.HISTORY_REPLAY, backlogEnd);
+        }
+        roomChanged(room);
+        Log.info(clientName, " вошел в комнату: ", room.getName());
+    }
 
-            rooms.get(roomName).remove(clientChannel);
-            clientRooms.remove(clientChannel);
+    private static void handleLeave(Connection connection) {
+        Room room = registry.leave(connection);
+        if (room != null) {
+            roomChanged(room);
+            String clientName = connection.getName();
 
-            broadcastToRoom("SYSTEM:" + clientName + " покинул комнату", roomName, null, selector);
-            System.out.println(clientName + " покинул комнату: " + roomName);
+            if (room.isOwned()) {
+                broadcastToRoom(Protocol.MessageType.SYSTEM, clientName + " покинул комнату", clientName, room, null);
+            } else {
+                cluster.forwardLeave(room, clientName);
+            }
+            Log.info(clientName, " покинул комнату: ", room.getName());
         }
     }
 
-    private static void handleMessage(SocketChannel clientChannel, String message, Selector selector) {
-        if (!clientNames.containsKey(clientChannel)) {
-            sendMessage(clientChannel, "SYSTEM: сначала зарегистрируйтесь");
+    // текст сообщения остается байтами буфера чтения: после проверки UTF-8 на месте
+    // они копируются в кадры получателей, журнал и последние сообщения без строк
+    private static void handleMessage(Connection connection) {
+        String clientName = connection.getName();
+        if (clientName == null) {
+            sendSystem(connection, " сначала зарегистрируйтесь");
+            return;
+        }
+
+        Room room = connection.getRoom();
+
+        if (room == null) {
+            sendSystem(connection, " сначала войдите в комнату");
+            return;
+        }
+
+        FrameDecoder decoder = connection.getDecoder();
+        ByteBuffer body = decoder.getBuffer();
+        int start = decoder.getBodyStart();
+        int length = decoder.getBodyLength();
+        if (length == 0) {
             return;
         }
 
-        String clientName = clientNames.get(clientChannel);
-        String roomName = clientRooms.get(clientChannel);
+        if (length > 1024) {
+            sendSystem(connection, " сообщение слишком длинное");
+            return;
+        }
 
-        if (roomName == null) {
-            sendMessage(clientChannel, "SYSTEM: сначала войдите в комнату");
+        if (!SharedFrame.isValidUtf8(body, start, start + length)) {
+            sendSystem(connection, " сообщение не в кодировке UTF-8");
             return;
         }
 
-        if (message.isEmpty()) {
+        if (room.isOwned()) {
+            publishMessage(room, connection.getMessageHeader(), body, start, length);
+        } else {
+            // порядок сообщений комнаты задает ее владелец, он же пришлет сообщение и нам
+            cluster.forwardMessage(room, connection, clientName, utf8String(body, start, length));
+        }
+        // строка на каждое сообщение чата: при уровне журнала выше DEBUG не собираем ее вовсе
+        if (Log.isEnabled(Log.Level.DEBUG)) {
+            Log.debug("[" + room.getName() + "] " + clientName + ": " + utf8String(body, start, length));
+        }
+    }
+
+    // "[имя] " в UTF-8, с него начинается каждое сообщение участника
+    private static byte[] messageHeader(String clientName) {
+        return ("[" + clientName + "] ").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String utf8String(ByteBuffer buffer, int start, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // сообщение в свою комнату: журнал, последние сообщения и рассылка.
+    // header - "[имя] ", текст - body[start, start + length), оба уже в UTF-8.
+    // все это под замком порядка комнаты, а рассылка только кладет кадры в очереди
+    // и узлам кластера, поэтому замок держится недолго
+    private static void publishMessage(Room room, byte[] header, ByteBuffer body, int start, int length) {
+        room.messageSent();
+        synchronized (room.getOrder()) {
+            RoomHistory history = room.getHistory();
+            long seq = -1;
+            if (history != null) {
+                try {
+                    seq = history.append(header, body, start, length);
+                } catch (IOException e) {
+                    Log.warn("ошибка записи истории комнаты ", room.getName(), ": ", e.getMessage());
+                }
+            }
+            RecentMessages recent = room.getRecentMessages();
+            // номера в памяти должны совпадать с журналом, поэтому не записанное в журнал пропускаем
+            if (recent != null && (history == null || seq >= 0)) {
+                byte[] formatted = Arrays.copyOf(header, header.length + length);
+                body.get(start, formatted, header.length, length);
+                recent.add(seq, formatted);
+            }
+            long begin = System.nanoTime();
+            deliverLocal(room, binary -> SharedFrame.encode(Protocol.MessageType.MESSAGE, header, body, start, length,
+                    binary), -1);
+            if (cluster != null && room.hasRemoteMembers()) {
+                // между узлами сообщения ходят строками
+                cluster.relay(room, Protocol.MessageType.MESSAGE,
+                        new String(header, StandardCharsets.UTF_8) + utf8String(body, start, length), null, null, -1);
+            }
+            metrics.broadcastCompleted(System.nanoTime() - begin);
+        }
+        if (recentBudget.isExceeded()) {
+            recentBudget.evictIdle(registry.getRooms());
+        }
+    }
+
+    // страница истории перед сообщением с номером data (пусто - самые последние)
+    private static void handleHistory(Connection connection, String data) {
+        Room room = connection.getRoom();
+        if (room == null) {
+            sendSystem(connection, " сначала войдите в комнату");
+            return;
+        }
+        if (!data.isEmpty()) {
+            try {
+                Long.parseLong(data.trim());
+            } catch (NumberFormatException e) {
+                sendSystem(connection, " неверный номер сообщения");
+                return;
+            }
+        }
+        if (!room.isOwned()) {
+            // история хранится у владельца комнаты, ответ придет в onRemoteHistory
+            cluster.forwardHistory(connection, room, data.trim());
             return;
         }
+        List<RoomHistory.Entry> page = historyPage(room, data.trim());
+        if (page == null) {
+            sendSystem(connection, " история не сохраняется");
+        } else if (page.isEmpty()) {
+            sendSystem(connection, " более ранних сообщений нет");
+        } else {
+            sendEntries(connection, page);
+        }
+    }
+
+    // страница истории перед номером before (пусто - самые последние), null если история выключена
+    static List<RoomHistory.Entry> historyPage(Room room, String before) {
+        RoomHistory history = room.getHistory();
+        if (history == null) {
+            return null;
+        }
+        long end = before.isEmpty() ? history.getNextSeq() : Long.parseLong(before);
+        return history.read(end - ServerConfig.HISTORY_PAGE_SIZE, end);
+    }
+
+    private static void sendEntries(Connection connection, List<RoomHistory.Entry> entries) {
+        for (RoomHistory.Entry entry : entries) {
+            sendMessage(connection, Protocol.MessageType.HISTORY, entry.getSeq() + " " + entry.getMessage());
+        }
+    }
+
+    // кластер: обработка команд клиентов других узлов в своих комнатах
+
+    // участник другого узла вошел, возвращает последние сообщения для него.
+    // вызывается под замком порядка комнаты
+    static List<RoomHistory.Entry> remoteJoin(Room room, String node, String clientName, long connectionId) {
+        RoomHistory history = room.getHistory();
+        RecentMessages recent = room.getRecentMessages();
+        long backlogEnd = recent != null ? recent.getNextSeq() : history != null ? history.getNextSeq() : 0;
+        room.remoteJoined(node);
+        roomChanged(room);
+        broadcastToRoom(Protocol.MessageType.SYSTEM, clientName + " присоединился к комнате", clientName,
+                room, null, node, connectionId);
+        long from = backlogEnd - ServerConfig.HISTORY_REPLAY;
+        if (history != null) {
+            return history.read(from, backlogEnd);
+        }
+        return recent != null ? recent.entries(from, backlogEnd) : new ArrayList<RoomHistory.Entry>();
+    }
+
+    // node == null - участник этого узла (запрос вернулся к нам после смены владельца)
+    static void remoteLeave(Room room, String node, String clientName) {
+        if (node != null) {
+            room.remoteLeft(node);
+        }
+        roomChanged(room);
+        broadcastToRoom(Protocol.MessageType.SYSTEM, clientName + " покинул комнату", clientName, room, null);
+    }
+
+    static void remoteMessage(Room room, String clientName, String message) {
+        byte[] body = message.getBytes(StandardCharsets.UTF_8);
+        publishMessage(room, messageHeader(clientName), ByteBuffer.wrap(body), 0, body.length);
+    }
+
+    // кластер: сообщение участника connectionId этого узла не нашло владельца комнаты
+    static void onUndelivered(Room room, long connectionId) {
+        synchronized (room.getOrder()) {
+            int count = room.getLocalMemberCount();
+            for (int i = 0; i < count; i++) {
+                Connection member = room.getMember(i);
+                if (member.getId() == connectionId) {
+                    sendSystem(member, " сообщение не доставлено: комната переезжает на другой узел, отправьте еще раз");
+                    return;
+                }
+            }
+        }
+    }
+
+    // кластер: ответы владельцев комнат на команды клиентов этого узла
+
+    static void onRemoteCreated(Connection connection, String roomName, String status) {
+        switch (status) {
+            case ClusterMessage.OK:
+                // о самой комнате владелец сообщил раньше ответа, она уже в списке
+                onRoomCreated(connection, roomName);
+                break;
+            case ClusterMessage.EXISTS:
+                sendSystem(connection, " комната уже существует");
+                break;
+            default:
+                sendSystem(connection, " не удалось создать комнату, попробуйте еще раз");
+        }
+    }
 
-        if (message.getBytes(StandardCharsets.UTF_8).length > 1024) {
-            sendMessage(clientChannel, "SYSTEM: сообщение слишком длинное");
+    static void onRemoteJoined(Connection connection, Room room, String status, RoomHistory.Entry[] backlog) {
+        if (ClusterMessage.OK.equals(status)) {
+            // рассылка владельца идет по той же связи после ответа и разбирается этим же потоком,
+            // поэтому участником клиент становится ровно на границе последних сообщений
+            if (connection.getRoom() == room) {
+                sendEntries(connection, Arrays.asList(backlog));
+                registry.admit(connection, room);
+            }
             return;
         }
+        // владелец не принял вход: откатываем его здесь, если клиент еще в этой комнате
+        if (registry.leave(connection, room)) {
+            roomChanged(room);
+        }
+        sendSystem(connection, ClusterMessage.NO_ROOM.equals(status)
+                ? " комната не существует" : " не удалось войти в комнату, попробуйте еще раз");
+    }
 
-        String formatted = "MESSAGE:[" + clientName + "] " + message;
-        broadcastToRoom(formatted, roomName, clientChannel, selector);
-        System.out.println("[" + roomName + "] " + clientName + ": " + message);
+    static void onRemoteHistory(Connection connection, String status, RoomHistory.Entry[] page) {
+        switch (status) {
+            case ClusterMessage.OK:
+                sendEntries(connection, Arrays.asList(page));
+                break;
+            case ClusterMessage.DISABLED:
+                sendSystem(connection, " история не сохраняется");
+                break;
+            default:
+                sendSystem(connection, " более ранних сообщений нет");
+        }
     }
 
-    private static void handleList(SocketChannel clientChannel) {
-        sendRoomList(clientChannel);
+    // последние сообщения новому участнику: то, что есть в памяти, уходит готовыми кадрами
+    // одной записью, а вытесненное из памяти начало дочитывается из журнала
+    private static void sendBacklog(Connection connection, RoomHistory history, RecentMessages recent, long from, long to) {
+        SharedFrame[] frames = recent != null ? recent.backlog(from, to, connection.isBinary()) : new SharedFrame[0];
+        long covered = to - frames.length;
+        if (history != null && covered > from) {
+            sendHistory(connection, history, from, covered);
+        }
+        connection.sendAll(frames);
+        for (SharedFrame frame : frames) {
+            frame.release();
+        }
     }
 
+    // сообщения истории от старых к новым, false если отправлять нечего
+    private static boolean sendHistory(Connection connection, RoomHistory history, long from, long to) {
+        List<RoomHistory.Entry> entries = history.read(from, to);
+        sendEntries(connection, entries);
+        return !entries.isEmpty();
+    }
 
-    private static void sendRoomList(SocketChannel clientChannel) {
-        StringBuilder list = new StringBuilder("LIST:");
-        for (String roomName : rooms.keySet()) {
-            int count = rooms.get(roomName).size(); // кол-во клиентов в комнате
-            list.append(roomName).append("(").append(count).append(");");
+    // ROOMS:SUBSCRIBE - полный список сейчас и дальше только изменения, ROOMS:UNSUBSCRIBE - хватит
+    private static void handleRooms(Connection connection, String data) {
+        switch (data) {
+            case "SUBSCRIBE":
+                // сначала подписка, потом снимок: изменение между ними придет повторно, но не потеряется
+                roomListPublisher.subscribe(connection);
+                sendRoomList(connection);
+                break;
+            case "UNSUBSCRIBE":
+                roomListPublisher.unsubscribe(connection);
+                break;
+            default:
+                sendSystem(connection, " неизвестная команда подписки");
         }
-        sendMessage(clientChannel, list.toString());
     }
 
-    private static void sendMessage(SocketChannel clientChannel, String message) {
-        try {
-            ByteBuffer byteBuffer = ByteBuffer.wrap((message + "\n").getBytes(StandardCharsets.UTF_8));
-            clientChannel.write(byteBuffer);
-        } catch (IOException e) {
-            System.out.println("ошибка при отправке сообщения: " + e.getMessage());
+    private static void handleList(Connection connection) {
+        sendRoomList(connection);
+    }
+
+
+    private static void sendRoomList(Connection connection) {
+        if (connection.isBinary()) {
+            sendBinaryRoomList(connection);
+            return;
         }
+        sendMessage(connection, Protocol.MessageType.LIST, formatRoomList(registry.getRooms()));
     }
 
-    private static void broadcastToRoom(String message, String roomName, SocketChannel sender, Selector selector) {
-        try {
-            ByteBuffer byteBuffer = ByteBuffer.wrap((message + "\n").getBytes(StandardCharsets.UTF_8));
-            Set<SocketChannel> roomClients = rooms.get(roomName);
-
-            if (roomClients != null) {
-                for (SocketChannel client : roomClients) {
-                    if (client != sender && client.isOpen() && client.isConnected()) {
-                        try {
-                            client.write(byteBuffer.duplicate());
-                        } catch (IOException e) {
-                            System.out.println("не удалось отправить сообщение клиенту: " + e.getMessage());
-                        }
+    // тело текстового LIST: Комната1(2);Комната2(0);
+    static String formatRoomList(Iterable<Room> rooms) {
+        StringBuilder list = new StringBuilder();
+        for (Room room : rooms) {
+            int count = room.getMemberCount(); // кол-во клиентов в комнате
+            list.append(room.getName()).append("(").append(count).append(");");
+        }
+        return list.toString();
+    }
+
+    // записи [номер][длина названия][название][кол-во клиентов], см. Protocol
+    private static void sendBinaryRoomList(Connection connection) {
+        // снимок, чтобы размер кадра совпал с содержимым
+        List<Room> rooms = new ArrayList<>(registry.getRooms());
+        int[] counts = new int[rooms.size()];
+        int[] nameLengths = new int[rooms.size()];
+        int bodyLength = 0;
+        for (int i = 0; i < rooms.size(); i++) {
+            Room room = rooms.get(i);
+            counts[i] = room.getMemberCount();
+            nameLengths[i] = SharedFrame.utf8Length(room.getName());
+            bodyLength += Protocol.varintSize(room.getId()) + Protocol.varintSize(nameLengths[i])
+                    + nameLengths[i] + Protocol.varintSize(counts[i]);
+        }
+
+        SharedFrame frame = SharedFrame.allocate(1 + Protocol.varintSize(bodyLength) + bodyLength);
+        ByteBuffer buffer = frame.buffer();
+        buffer.put(Protocol.MessageType.LIST.getOpcode());
+        Protocol.putVarint(buffer, bodyLength);
+        for (int i = 0; i < rooms.size(); i++) {
+            Protocol.putVarint(buffer, rooms.get(i).getId());
+            Protocol.putVarint(buffer, nameLengths[i]);
+            SharedFrame.putUtf8(buffer, rooms.get(i).getName());
+            Protocol.putVarint(buffer, counts[i]);
+        }
+        connection.send(frame.complete());
+        frame.release();
+    }
+
+    static void sendSystem(Connection connection, String message) {
+        sendMessage(connection, Protocol.MessageType.SYSTEM, message);
+    }
+
+    private static void sendMessage(Connection connection, Protocol.MessageType type, String message) {
+        SharedFrame frame = SharedFrame.encode(type, message, connection.isBinary());
+        connection.send(frame);
+        frame.release();
+    }
+
+    private static void broadcastToRoom(Protocol.MessageType type, String message, String subject,
+                                        Room room, Connection sender) {
+        broadcastToRoom(type, message, subject, room, sender, null, -1);
+    }
+
+    // рассылка по своей комнате: участникам этого сервера и узлам кластера, где есть участники.
+    // системное сообщение не получает sender (или соединение senderId на узле senderNode)
+    private static void broadcastToRoom(Protocol.MessageType type, String message, String subject,
+                                        Room room, Connection sender, String senderNode, long senderId) {
+        // системные сообщения встают в тот же порядок, что и сообщения участников
+        synchronized (room.getOrder()) {
+            long start = System.nanoTime();
+            deliverLocal(room, type, message, subject, sender != null ? sender.getId() : -1);
+            if (cluster != null) {
+                cluster.relay(room, type, message, subject, senderNode, senderId);
+            }
+            metrics.broadcastCompleted(System.nanoTime() - start);
+        }
+    }
+
+    // кадр сообщения в протоколе получателя
+    private interface FrameFactory {
+        SharedFrame encode(boolean binary);
+    }
+
+    // subject - участник, о входе или выходе которого это уведомление (null для остальных),
+    // системное сообщение не получает соединение с номером excludeId
+    static void deliverLocal(Room room, Protocol.MessageType type, String message, String subject, long excludeId) {
+        // свои сообщения отправитель тоже получает, а системное о себе - нет
+        deliverLocal(room, binary -> SharedFrame.encode(type, message, binary).about(subject),
+                type == Protocol.MessageType.SYSTEM ? excludeId : -1);
+    }
+
+    // сообщение кодируется один раз для каждого протокола и этот же кадр кладется
+    // в очереди получателей, а отправляют его их реакторы, поэтому рассылать можно из любого потока.
+    // соединение с номером excludeId сообщение не получает
+    private static void deliverLocal(Room room, FrameFactory frames, long excludeId) {
+        SharedFrame textFrame = null;
+        SharedFrame binaryFrame = null;
+
+        // участников обходим под замком комнаты: пока идет рассылка, никто не входит и не выходит.
+        // у владельца замок уже взят (publishMessage, broadcastToRoom), повторный вход ничего не стоит
+        synchronized (room.getOrder()) {
+            int count = room.getLocalMemberCount();
+            for (int i = 0; i < count; i++) {
+                Connection client = room.getMember(i);
+                if (client.getId() == excludeId) {
+                    continue;
+                }
+                if (!client.getChannel().isOpen()) {
+                    continue;
+                }
+                if (client.isBinary()) {
+                    if (binaryFrame == null) {
+                        binaryFrame = frames.encode(true);
+                    }
+                    client.send(binaryFrame);
+                } else {
+                    if (textFrame == null) {
+                        textFrame = frames.encode(false);
                     }
+                    client.send(textFrame);
                 }
             }
-            // отправляем отправителю тоже (кроме системных сообщений)
-            if (sender != null && !message.startsWith("SYSTEM:") && sender.isOpen() && sender.isConnected()) {
-                sender.write(byteBuffer.duplicate());
-            }
-        } catch (Exception e) {
-            System.out.println("ошибка при рассылке сообщения: " + e.getMessage());
+        }
+        if (textFrame != null) {
+            textFrame.release();
+        }
+        if (binaryFrame != null) {
+            binaryFrame.release();
         }
     }
 
-    private static void disconnectClient(SocketChannel clientChannel, Selector selector) {
-        String clientName = clientNames.get(clientChannel);
+    // вызывается владельцем соединения, когда закрывать его безопасно
+    static void disconnectClient(Connection connection) {
+        admission.release(connection.getRemoteAddress());
+        String clientName = connection.getName();
+        roomListPublisher.unsubscribe(connection);
         // покидаем комнату
-        handleLeave(clientChannel, selector);
-        clientNames.remove(clientChannel);
-        clientRooms.remove(clientChannel);
+        handleLeave(connection);
+        registry.unregister(connection);
         try {
-            if (clientChannel.isOpen()) {
-                clientChannel.close();
+            if (connection.getChannel().isOpen()) {
+                connection.getChannel().close();
             }
         } catch (IOException e) {
-            System.out.println("ошибка при закрытии канала: " + e.getMessage());
+            Log.warn("ошибка при закрытии канала: ", e.getMessage());
         }
 
         if (clientName != null) {
-            System.out.println(clientName + " отсоединился");
+            Log.info(clientName, " отсоединился");
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,272 @@
+package nio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// транспорт клиента: неблокирующий SocketChannel и один поток ввода-вывода со своим селектором.
+// команды кладут любые потоки (обычно поток Swing) в очередь и сразу возвращаются,
+// а поток транспорта отправляет все, что накопилось с прошлого прохода, одной записью
+// и разбирает ответы сервера. рукопожатие (приглашение сервера и выбор протокола)
+// выполняется до start блокирующими вызовами, пока поток еще не запущен
+public final class ClientTransport {
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // сколько байт команд может ждать отправки, дальше команды выбрасываются
+    private static final int MAX_PENDING_BYTES = 1024 * 1024;
+
+    // что транспорт получил от сервера, вызывается в потоке транспорта
+    public interface Receiver {
+        // строка текстового протокола без '\n'
+        void onLine(String line);
+
+        // кадр бинарного протокола
+        void onFrame(int opcode, byte[] body);
+
+        // соединение закрыл сервер или сеть, а не close()
+        void onClosed(String reason);
+    }
+
+    private final SocketChannel channel;
+    private final Selector selector;
+    // закодированные команды, которые еще не скопированы в буфер отправки
+    private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingBytes = new AtomicInteger();
+    // селектор уже разбудили ради новых команд
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private volatile boolean closing = false;
+    // дальше только у потока транспорта
+    private final ByteBuffer writeBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private SelectionKey key;
+    private boolean binary;
+    private Receiver receiver;
+
+    private ClientTransport(SocketChannel channel) throws IOException {
+        this.channel = channel;
+        this.selector = Selector.open();
+        writeBuffer.flip();
+    }
+
+    // блокирующее подключение, поток транспорта еще не запущен
+    public static ClientTransport connect(String host, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+            channel.socket().setTcpNoDelay(true);
+            return new ClientTransport(channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // рукопожатие: строка без '\n', null если соединение закрыто.
+    // читаем по байту, чтобы не забрать из канала следующие за ней бинарные кадры
+    public String readHandshakeLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        ByteBuffer one = ByteBuffer.allocate(1);
+        while (true) {
+            one.clear();
+            if (channel.read(one) == -1) {
+                return line.size() > 0 ? line.toString(StandardCharsets.UTF_8) : null;
+            }
+            if (one.get(0) == '\n') {
+                break;
+            }
+            line.write(one.get(0));
+        }
+        String result = line.toString(StandardCharsets.UTF_8);
+        return result.endsWith("\r") ? result.substring(0, result.length() - 1) : result;
+    }
+
+    // рукопожатие: блокирующая запись строки
+    public void writeHandshakeLine(String line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    // после рукопожатия: дальше канал читает и пишет только поток транспорта
+    public void start(boolean binary, Receiver receiver) throws IOException {
+        this.binary = binary;
+        this.receiver = receiver;
+        channel.configureBlocking(false);
+        key = channel.register(selector, SelectionKey.OP_READ);
+        Thread thread = new Thread(this::run, "chat-client-io");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // ставит закодированную команду в очередь, не дожидаясь сети.
+    // false - соединение закрыто или сервер давно не принимает данные
+    public boolean send(byte[] command) {
+        if (closing) {
+            return false;
+        }
+        if (pendingBytes.addAndGet(command.length) > MAX_PENDING_BYTES) {
+            pendingBytes.addAndGet(-command.length);
+            Log.warn("сервер не принимает данные, команда не отправлена");
+            return false;
+        }
+        outbound.add(ByteBuffer.wrap(command));
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+        return true;
+    }
+
+    // отправляет то, что уже в очереди, и закрывает соединение
+    public void close() {
+        closing = true;
+        selector.wakeup();
+    }
+
+    private void run() {
+        String lostReason = null;
+        try {
+            while (true) {
+                selector.selectedKeys().clear();
+                selector.select();
+                wakeupPending.set(false);
+                boolean readable = selector.selectedKeys().contains(key) && key.isReadable();
+                if (readable && !read()) {
+                    lostReason = "сервер закрыл соединение";
+                    break;
+                }
+                boolean flushed = flush();
+                if (closing && flushed) {
+                    break;
+                }
+                key.interestOps(flushed ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        } catch (IOException e) {
+            lostReason = "соединение с сервером разорвано";
+        } catch (IllegalArgumentException e) {
+            // неверная длина кадра или тело, которое не разобрать: дальше поток не выровнять
+            lostReason = "ошибка протокола: " + e.getMessage();
+        }
+        try {
+            channel.close();
+            selector.close();
+        } catch (IOException e) {
+            // уже закрыт
+        }
+        // о закрытии через close() сообщать некому: его вызвал сам клиент
+        if (lostReason != null && !closing) {
+            closing = true;
+            receiver.onClosed(lostReason);
+        }
+    }
+
+    // переносит очередь в буфер и пишет, пока канал принимает. true - отправлено все
+    private boolean flush() throws IOException {
+        while (true) {
+            if (!writeBuffer.hasRemaining()) {
+                writeBuffer.clear();
+                ByteBuffer command;
+                // все накопленные команды одной записью; команда, которая не влезла, ждет следующей
+                while ((command = outbound.peek()) != null) {
+                    if (command.remaining() > writeBuffer.remaining()) {
+                        if (writeBuffer.position() > 0) {
+                            break;
+                        }
+                        // больше буфера: пишем ее саму по частям
+                        writeBuffer.flip();
+                        return writeDirect(command);
+                    }
+                    outbound.poll();
+                    pendingBytes.addAndGet(-command.remaining());
+                    writeBuffer.put(command);
+                }
+                writeBuffer.flip();
+                if (!writeBuffer.hasRemaining()) {
+                    return true;
+                }
+            }
+            channel.write(writeBuffer);
+            if (writeBuffer.hasRemaining()) {
+                return false;
+            }
+        }
+    }
+
+    private boolean writeDirect(ByteBuffer command) throws IOException {
+        int before = command.remaining();
+        channel.write(command);
+        pendingBytes.addAndGet(command.remaining() - before);
+        if (command.hasRemaining()) {
+            return false;
+        }
+        outbound.poll();
+        return flush();
+    }
+
+    // false - сервер закрыл соединение
+    private boolean read() throws IOException {
+        int readBytes = channel.read(readBuffer);
+        if (readBytes == -1) {
+            return false;
+        }
+        readBuffer.flip();
+        if (binary) {
+            readFrames();
+        } else {
+            readLines();
+        }
+        readBuffer.compact();
+        if (!readBuffer.hasRemaining()) {
+            // неразобранное сообщение заняло весь буфер: сервер шлет и длиннее, расширяем
+            ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
+        return true;
+    }
+
+    private void readLines() {
+        int start = readBuffer.position();
+        for (int i = start; i < readBuffer.limit(); i++) {
+            if (readBuffer.get(i) != '\n') {
+                continue;
+            }
+            int length = i - start;
+            if (length > 0 && readBuffer.get(i - 1) == '\r') {
+                length--;
+            }
+            receiver.onLine(new String(readBuffer.array(), start, length, StandardCharsets.UTF_8));
+            start = i + 1;
+        }
+        readBuffer.position(start);
+    }
+
+    // кадры [код][varint длина][тело]
+    private void readFrames() {
+        while (readBuffer.remaining() >= 2) {
+            int start = readBuffer.position();
+            int length = Protocol.getVarint(readBuffer, start + 1, readBuffer.limit());
+            if (length < 0) {
+                break; // длина пришла не целиком
+            }
+            int bodyStart = start + 1 + Protocol.varintSize(length);
+            if (bodyStart + length > readBuffer.limit()) {
+                break;
+            }
+            byte[] body = new byte[length];
+            readBuffer.get(bodyStart, body);
+            readBuffer.position(bodyStart + length);
+            receiver.onFrame(readBuffer.get(start) & 0xFF, body);
+        }
+    }
+}
@@ -0,0 +1,607 @@
+package nio;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// кластерный режим: несколько процессов сервера делят комнаты между собой.
+//
+// каждая комната принадлежит одному узлу (кольцо консистентного хеширования по названию,
+// см. HashRing). владелец хранит историю и задает порядок сообщений комнаты. клиент может
+// подключиться к любому узлу: если комната чужая, узел пересылает его команды владельцу,
+// а владелец рассылает сообщения комнаты узлам, где у нее есть участники (DELIVER),
+// одним сообщением на узел, дальше каждый узел раздает его своим участникам.
+//
+// узлы связаны каждый с каждым: у каждого узла исходящая связь к каждому другому
+// (ClusterLink) и входящие соединения от них. внешней службы нет: узел знает адреса
+// из chat.cluster.seeds, остальных узнает из проверок связи (PING со списком узлов).
+// узел живой, пока от него приходят сообщения; если состав живых узлов изменился,
+// кольцо строится заново и комнаты, сменившие владельца, переезжают: каждый узел сообщает
+// новому владельцу, сколько у него участников (ATTACH). история остается на диске
+// прежнего владельца, новый начинает свой журнал комнаты.
+// кольца узлов меняются не одновременно, поэтому сообщение участника может прийти узлу,
+// который комнатой уже (или еще) не владеет: он передает его владельцу по своему кольцу
+// или откладывает до следующей проверки связи, а если владельца так и нет - сообщает
+// отправителю, что сообщение не доставлено (UNDELIVERED)
+public class Cluster {
+    static final long HEARTBEAT_MILLIS = ServerConfig.CLUSTER_HEARTBEAT_MILLIS;
+    // точек на кольце у каждого узла, должно совпадать на всех узлах
+    private static final int RING_POINTS = 64;
+    // сколько раз сообщение передают от узла к узлу, пока комната переезжает
+    private static final int MAX_MESSAGE_HOPS = 16;
+    // сколько отложенное сообщение ждет владельца комнаты: за это время кольца узлов сходятся
+    private static final long PARKED_MESSAGE_MILLIS = 2 * ServerConfig.CLUSTER_NODE_TIMEOUT_MILLIS;
+
+    // адрес этого узла в кластере, host:port - он же имя узла
+    private final String self;
+    private final RoomRegistry registry;
+    // исходящие связи ко всем известным узлам
+    private final ConcurrentMap<String, ClusterLink> links = new ConcurrentHashMap<>();
+    // когда от узла последний раз что-то приходило, по нему решаем, жив ли он
+    private final ConcurrentMap<String, Long> lastSeen = new ConcurrentHashMap<>();
+    // живые узлы, по которым построено кольцо (вместе с этим узлом), меняет только поток кластера
+    private Set<String> liveNodes;
+    private volatile HashRing ring;
+    // запросы к владельцам комнат, ждущие ответа
+    private final ConcurrentMap<Long, PendingRequest> pendingRequests = new ConcurrentHashMap<>();
+    private final AtomicLong nextRequestId = new AtomicLong(1);
+    // сообщения для комнат, у которых сейчас нет владельца на этом узле, по порядку прихода
+    private final Queue<ParkedMessage> parkedMessages = new ConcurrentLinkedQueue<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cluster");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // от кого ждем ответ и зачем
+    private static final class PendingRequest {
+        private final Connection connection;
+        private final String node;
+        private final String roomName;
+        // комната, в которую клиент уже вошел здесь (null для создания комнаты)
+        private final Room room;
+
+        private PendingRequest(Connection connection, String node, String roomName, Room room) {
+            this.connection = connection;
+            this.node = node;
+            this.roomName = roomName;
+            this.room = room;
+        }
+    }
+
+    // сообщение участника, отложенное до смены владельца комнаты
+    private static final class ParkedMessage {
+        private final ClusterMessage message;
+        private final long since;
+
+        private ParkedMessage(ClusterMessage message, long since) {
+            this.message = message;
+            this.since = since;
+        }
+    }
+
+    public Cluster(String self, RoomRegistry registry) {
+        this.self = self;
+        this.registry = registry;
+        this.liveNodes = new TreeSet<>(Set.of(self));
+        this.ring = new HashRing(liveNodes, RING_POINTS);
+    }
+
+    public void start(int port, List<String> seeds) throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(port));
+        Thread acceptor = new Thread(() -> acceptLoop(serverSocket), "cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (String seed : seeds) {
+            addNode(seed);
+        }
+        scheduler.scheduleAtFixedRate(this::tick, HEARTBEAT_MILLIS, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+        Log.info("узел кластера ", self, ", известные узлы: ", seeds);
+    }
+
+    public String getSelf() {
+        return self;
+    }
+
+    public boolean isOwner(String roomName) {
+        return self.equals(ring.ownerOf(roomName));
+    }
+
+    ClusterMessage hello() {
+        return new ClusterMessage(ClusterMessage.HELLO, self, knownNodes());
+    }
+
+    // запросы владельцу комнаты от клиентов этого узла
+
+    public void forwardCreate(Connection connection, String roomName, String clientName) {
+        String owner = ring.ownerOf(roomName);
+        long requestId = register(connection, owner, roomName, null);
+        send(owner, new ClusterMessage(ClusterMessage.CREATE, Long.toString(requestId), roomName, clientName));
+    }
+
+    public void forwardJoin(Connection connection, Room room, String clientName) {
+        String owner = ring.ownerOf(room.getName());
+        long requestId = register(connection, owner, room.getName(), room);
+        send(owner, new ClusterMessage(ClusterMessage.JOIN, Long.toString(requestId), room.getName(),
+                clientName, Long.toString(connection.getId())));
+    }
+
+    public void forwardLeave(Room room, String clientName) {
+        send(ring.ownerOf(room.getName()), new ClusterMessage(ClusterMessage.LEAVE, room.getName(), clientName));
+    }
+
+    public void forwardMessage(Room room, Connection connection, String clientName, String message) {
+        send(ring.ownerOf(room.getName()), new ClusterMessage(ClusterMessage.MESSAGE, room.getName(), clientName,
+                message, self, Long.toString(connection.getId()), "0"));
+    }
+
+    public void forwardHistory(Connection connection, Room room, String before) {
+        String owner = ring.ownerOf(room.getName());
+        long requestId = register(connection, owner, room.getName(), room);
+        send(owner, new ClusterMessage(ClusterMessage.HISTORY, Long.toString(requestId), room.getName(), before));
+    }
+
+    // владелец: сообщение комнаты узлам, где есть ее участники.
+    // exclude - номер соединения на узле excludeNode, которому не отправлять
+    public void relay(Room room, Protocol.MessageType type, String message, String subject,
+                      String excludeNode, long exclude) {
+        for (String node : room.getRemoteNodes()) {
+            if (self.equals(node)) {
+                // своим участникам комната уже разослала сама
+                continue;
+            }
+            String excluded = node.equals(excludeNode) ? Long.toString(exclude) : "";
+            send(node, new ClusterMessage(ClusterMessage.DELIVER, room.getName(),
+                    Byte.toString(type.getOpcode()), message, subject != null ? subject : "", excluded));
+        }
+    }
+
+    // владелец: комната появилась или у нее поменялось число участников
+    public void publishRoom(Room room) {
+        ClusterMessage message = new ClusterMessage(ClusterMessage.ROOM, room.getName(),
+                Integer.toString(room.getMemberCount()));
+        for (String node : links.keySet()) {
+            send(node, message);
+        }
+    }
+
+    private long register(Connection connection, String node, String roomName, Room room) {
+        long requestId = nextRequestId.getAndIncrement();
+        pendingRequests.put(requestId, new PendingRequest(connection, node, roomName, room));
+        return requestId;
+    }
+
+    private void send(String node, ClusterMessage message) {
+        if (self.equals(node)) {
+            // кольцо успело поменяться, комната теперь наша
+            handle(self, message);
+            return;
+        }
+        ClusterLink link = links.get(node);
+        if (link != null) {
+            link.send(message);
+        }
+    }
+
+    // состав кластера
+
+    private void addNode(String node) {
+        if (node.isEmpty() || node.equals(self)) {
+            return;
+        }
+        links.computeIfAbsent(node, key -> {
+            ClusterLink link = new ClusterLink(this, key);
+            link.start();
+            return link;
+        });
+    }
+
+    private String knownNodes() {
+        StringBuilder nodes = new StringBuilder(self);
+        for (String node : links.keySet()) {
+            nodes.append(',').append(node);
+        }
+        return nodes.toString();
+    }
+
+    // раз в HEARTBEAT_MILLIS: проверка связи и пересчет живых узлов
+    private void tick() {
+        try {
+            ClusterMessage ping = new ClusterMessage(ClusterMessage.PING, knownNodes());
+            for (ClusterLink link : links.values()) {
+                if (link.isConnected()) {
+                    link.send(ping);
+                }
+            }
+            long now = System.currentTimeMillis();
+            Set<String> live = new TreeSet<>();
+            live.add(self);
+            for (Map.Entry<String, Long> entry : lastSeen.entrySet()) {
+                if (now - entry.getValue() <= ServerConfig.CLUSTER_NODE_TIMEOUT_MILLIS) {
+                    live.add(entry.getKey());
+                }
+            }
+            if (!live.equals(liveNodes)) {
+                changeMembership(live);
+            }
+            retryParkedMessages(now);
+        } catch (RuntimeException e) {
+            Log.error("ошибка в потоке кластера: ", e);
+        }
+    }
+
+    private synchronized void changeMembership(Set<String> live) {
+        Set<String> left = new TreeSet<>(liveNodes);
+        left.removeAll(live);
+        Set<String> joined = new TreeSet<>(live);
+        joined.removeAll(liveNodes);
+        Log.info("состав кластера: ", live, left.isEmpty() ? "" : ", ушли: " + left,
+                joined.isEmpty() ? "" : ", пришли: " + joined);
+
+        List<ClusterMessage> unsent = new ArrayList<>();
+        for (String node : left) {
+            ClusterLink link = links.get(node);
+            if (link != null) {
+                unsent.addAll(link.reset());
+            }
+            failPendingRequests(node);
+        }
+        liveNodes = live;
+        // новое кольцо видно другим потокам только после переезда комнат: сообщения клиентов,
+        // отправленные по нему новому владельцу, идут по связи после ROOM и ATTACH
+        HashRing next = new HashRing(live, RING_POINTS);
+        rebalance(ring, next, left);
+        ring = next;
+        // сообщения участников, которые ушедший узел так и не получил, - новым владельцам комнат
+        for (ClusterMessage message : unsent) {
+            if (message.getType() == ClusterMessage.MESSAGE && !routeMessage(self, message)) {
+                parkedMessages.add(new ParkedMessage(message, System.currentTimeMillis()));
+            }
+        }
+    }
+
+    // комнаты, сменившие владельца, переезжают
+    private void rebalance(HashRing previous, HashRing next, Set<String> left) {
+        int moved = 0;
+        for (Room room : registry.getRooms()) {
+            String oldOwner = previous.ownerOf(room.getName());
+            String newOwner = next.ownerOf(room.getName());
+            // участники ушедших узлов пропали вместе с ними
+            boolean changed = false;
+            for (String node : left) {
+                changed |= room.removeRemoteNode(node);
+            }
+            if (changed && room.isOwned() && self.equals(newOwner)) {
+                ChatServerNio.roomChanged(room);
+            }
+            if (oldOwner.equals(newOwner)) {
+                continue;
+            }
+            moved++;
+            if (self.equals(newOwner)) {
+                ChatServerNio.takeOwnership(room);
+                ChatServerNio.roomChanged(room);
+            } else {
+                // новый владелец узнает о комнате и о наших участниках (и об их отсутствии)
+                send(newOwner, new ClusterMessage(ClusterMessage.ROOM, room.getName(), "-1"));
+                if (room.isOwned()) {
+                    // прежний владелец передает и участников других узлов: узлы, которые еще
+                    // не сменили кольцо, пришлют ATTACH позже, а их сообщения до тех пор
+                    // идут через нас новому владельцу, и он должен рассылать им комнату
+                    for (Map.Entry<String, Integer> entry : room.getRemoteMembers().entrySet()) {
+                        if (!entry.getKey().equals(newOwner)) {
+                            send(newOwner, new ClusterMessage(ClusterMessage.ATTACH, room.getName(),
+                                    Integer.toString(entry.getValue()), entry.getKey()));
+                        }
+                    }
+                    ChatServerNio.releaseOwnership(room);
+                }
+                send(newOwner, new ClusterMessage(ClusterMessage.ATTACH, room.getName(),
+                        Integer.toString(room.getLocalMemberCount())));
+            }
+        }
+        if (moved > 0) {
+            Log.info("сменили владельца комнат: ", moved);
+        }
+    }
+
+    // ответа от ушедшего узла не будет
+    private void failPendingRequests(String node) {
+        for (Map.Entry<Long, PendingRequest> entry : pendingRequests.entrySet()) {
+            if (entry.getValue().node.equals(node) && pendingRequests.remove(entry.getKey()) != null) {
+                ChatServerNio.sendSystem(entry.getValue().connection, " узел комнаты недоступен, попробуйте еще раз");
+            }
+        }
+    }
+
+    // входящие соединения от других узлов
+
+    private void acceptLoop(ServerSocket serverSocket) {
+        while (true) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread.ofVirtual().name("cluster-reader").start(() -> readLoop(socket));
+            } catch (IOException e) {
+                Log.warn("ошибка при принятии соединения узла: ", e.getMessage());
+            }
+        }
+    }
+
+    private void readLoop(Socket socket) {
+        String node = null;
+        try (socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            ClusterMessage hello = ClusterMessage.readFrom(in);
+            if (hello.getType() != ClusterMessage.HELLO) {
+                Log.warn("узел не представился, соединение закрыто");
+                return;
+            }
+            node = hello.get(0);
+            addNode(node);
+            mergeNodes(hello.get(1));
+            lastSeen.put(node, System.currentTimeMillis());
+            // новому (или вернувшемуся) узлу - все известные нам комнаты
+            announceRooms(node);
+            while (true) {
+                ClusterMessage message = ClusterMessage.readFrom(in);
+                lastSeen.put(node, System.currentTimeMillis());
+                handle(node, message);
+            }
+        } catch (EOFException e) {
+            // узел закрыл соединение
+        } catch (IOException e) {
+            Log.warn("ошибка чтения от узла ", node, ": ", e.getMessage());
+        } catch (RuntimeException e) {
+            Log.error("ошибка обработки сообщения узла ", node, ": ", e);
+        }
+    }
+
+    private void mergeNodes(String nodes) {
+        for (String node : nodes.split(",")) {
+            addNode(node.trim());
+        }
+    }
+
+    private void announceRooms(String node) {
+        for (Room room : registry.getRooms()) {
+            int count = room.isOwned() ? room.getMemberCount() : -1;
+            send(node, new ClusterMessage(ClusterMessage.ROOM, room.getName(), Integer.toString(count)));
+        }
+    }
+
+    // сообщение от узла node (или от себя, если кольцо поменялось, пока запрос шел)
+    private void handle(String node, ClusterMessage message) {
+        switch (message.getType()) {
+            case ClusterMessage.PING:
+                mergeNodes(message.get(0));
+                break;
+            case ClusterMessage.ROOM:
+                handleRoom(message.get(0), Integer.parseInt(message.get(1)));
+                break;
+            case ClusterMessage.CREATE:
+                handleCreate(node, message);
+                break;
+            case ClusterMessage.JOIN:
+                handleJoin(node, message);
+                break;
+            case ClusterMessage.LEAVE: {
+                Room room = ownedRoom(message.get(0));
+                if (room != null) {
+                    // от себя - клиент этого узла, ушедший до того, как комната стала нашей
+                    ChatServerNio.remoteLeave(room, self.equals(node) ? null : node, message.get(1));
+                }
+                break;
+            }
+            case ClusterMessage.MESSAGE:
+                if (!routeMessage(node, message)) {
+                    parkedMessages.add(new ParkedMessage(message, System.currentTimeMillis()));
+                }
+                break;
+            case ClusterMessage.UNDELIVERED: {
+                Room room = registry.getRoom(message.get(0));
+                if (room != null) {
+                    ChatServerNio.onUndelivered(room, Long.parseLong(message.get(1)));
+                }
+                break;
+            }
+            case ClusterMessage.HISTORY:
+                handleHistory(node, message);
+                break;
+            case ClusterMessage.DELIVER: {
+                Room room = registry.getRoom(message.get(0));
+                if (room != null) {
+                    String exclude = message.get(4);
+                    ChatServerNio.deliverLocal(room, Protocol.MessageType.fromOpcode(Byte.parseByte(message.get(1))),
+                            message.get(2), message.get(3).isEmpty() ? null : message.get(3),
+                            exclude.isEmpty() ? -1 : Long.parseLong(exclude));
+                }
+                break;
+            }
+            case ClusterMessage.ATTACH:
+                handleAttach(node, message);
+                break;
+            case ClusterMessage.CREATED:
+            case ClusterMessage.JOINED:
+            case ClusterMessage.HISTORY_PAGE:
+                handleReply(message);
+                break;
+            default:
+                Log.warn("неизвестное сообщение от узла ", node, ": ", message.getType());
+        }
+    }
+
+    // сообщение участника пришло от узла from: владельцу - в комнату, иначе владельцу по нашему кольцу.
+    // false - пока некуда, сообщение надо отложить
+    private boolean routeMessage(String from, ClusterMessage message) {
+        String roomName = message.get(0);
+        if (isOwner(roomName) && registry.getRoom(roomName) == null) {
+            // о комнате нам еще не сообщили, а по кольцу она уже наша
+            handleRoom(roomName, -1);
+        }
+        Room room = ownedRoom(roomName);
+        if (room != null) {
+            ChatServerNio.remoteMessage(room, message.get(1), message.get(2));
+            return true;
+        }
+        // не возвращаем сразу тому, кто прислал: его кольцо считает владельцем нас,
+        // такое сообщение ждет, пока кольца сойдутся
+        String owner = ring.ownerOf(roomName);
+        int hops = Integer.parseInt(message.get(5));
+        if (self.equals(owner) || owner.equals(from) || hops >= MAX_MESSAGE_HOPS || !links.containsKey(owner)) {
+            return false;
+        }
+        send(owner, new ClusterMessage(ClusterMessage.MESSAGE, roomName, message.get(1), message.get(2),
+                message.get(3), message.get(4), Integer.toString(hops + 1)));
+        return true;
+    }
+
+    // отложенные сообщения: владелец мог появиться после смены состава кластера
+    private void retryParkedMessages(long now) {
+        for (int i = parkedMessages.size(); i > 0; i--) {
+            ParkedMessage parked = parkedMessages.poll();
+            if (parked == null) {
+                return;
+            }
+            if (routeMessage(self, parked.message)) {
+                continue;
+            }
+            if (now - parked.since < PARKED_MESSAGE_MILLIS) {
+                parkedMessages.add(parked);
+                continue;
+            }
+            ClusterMessage message = parked.message;
+            Log.warn("сообщение для комнаты ", message.get(0), " не доставлено: нет владельца");
+            send(message.get(3), new ClusterMessage(ClusterMessage.UNDELIVERED, message.get(0), message.get(4)));
+        }
+    }
+
+    // комната из каталога: заводим ее у себя, если еще не знали
+    private synchronized void handleRoom(String roomName, int count) {
+        Room room = registry.getRoom(roomName);
+        if (room == null) {
+            room = ChatServerNio.addClusterRoom(roomName);
+            if (isOwner(roomName)) {
+                ChatServerNio.takeOwnership(room);
+                ChatServerNio.roomChanged(room);
+                return;
+            }
+            ChatServerNio.roomChanged(room);
+        }
+        if (count >= 0 && !room.isOwned()) {
+            room.setClusterMemberCount(count);
+            ChatServerNio.roomChanged(room);
+        }
+    }
+
+    private void handleAttach(String node, ClusterMessage message) {
+        handleRoom(message.get(0), -1);
+        Room room = registry.getRoom(message.get(0));
+        int count = Integer.parseInt(message.get(1));
+        // запоминаем, даже если комната еще не наша: кольцо этого узла могло смениться
+        // позже, чем у отправителя, и комнату мы примем следом
+        if (message.size() > 2) {
+            // от прежнего владельца: узел сам пришлет точное число, если еще не прислал
+            if (!self.equals(message.get(2))) {
+                room.addRemoteMembersIfAbsent(message.get(2), count);
+            }
+        } else {
+            room.setRemoteMembers(node, count);
+        }
+        if (room.isOwned()) {
+            ChatServerNio.roomChanged(room);
+        }
+    }
+
+    // комната, если она наша
+    private Room ownedRoom(String roomName) {
+        Room room = registry.getRoom(roomName);
+        return room != null && room.isOwned() ? room : null;
+    }
+
+    private void handleCreate(String node, ClusterMessage message) {
+        String status;
+        if (!isOwner(message.get(1))) {
+            status = ClusterMessage.NOT_OWNER;
+        } else if (ChatServerNio.createRoom(message.get(1), message.get(2)) == null) {
+            status = ClusterMessage.EXISTS;
+        } else {
+            status = ClusterMessage.OK;
+        }
+        send(node, new ClusterMessage(ClusterMessage.CREATED, message.get(0), status));
+    }
+
+    private void handleJoin(String node, ClusterMessage message) {
+        Room room = ownedRoom(message.get(1));
+        if (room == null) {
+            String status = registry.getRoom(message.get(1)) == null ? ClusterMessage.NO_ROOM : ClusterMessage.NOT_OWNER;
+            send(node, new ClusterMessage(ClusterMessage.JOINED, message.get(0), status));
+            return;
+        }
+        if (self.equals(node)) {
+            // кольцо поменялось, пока шел запрос, и комната теперь наша: клиент этого узла
+            // входит в нее как в свою, а не как участник другого узла
+            PendingRequest request = pendingRequests.remove(Long.parseLong(message.get(0)));
+            if (request != null) {
+                ChatServerNio.onForwardedJoin(request.connection, room);
+            }
+            return;
+        }
+        // вход и ответ - под замком порядка комнаты: все, что не попало в последние сообщения,
+        // уйдет узлу рассылкой следом за ответом по той же связи
+        synchronized (room.getOrder()) {
+            List<RoomHistory.Entry> backlog = ChatServerNio.remoteJoin(room, node, message.get(2),
+                    Long.parseLong(message.get(3)));
+            send(node, ClusterMessage.withEntries(ClusterMessage.JOINED, message.get(0), ClusterMessage.OK, backlog));
+        }
+    }
+
+    private void handleHistory(String node, ClusterMessage message) {
+        Room room = ownedRoom(message.get(1));
+        List<RoomHistory.Entry> page = room != null ? ChatServerNio.historyPage(room, message.get(2)) : new ArrayList<>();
+        String status;
+        if (page == null) {
+            status = ClusterMessage.DISABLED;
+            page = new ArrayList<>();
+        } else {
+            status = page.isEmpty() ? ClusterMessage.EMPTY : ClusterMessage.OK;
+        }
+        send(node, ClusterMessage.withEntries(ClusterMessage.HISTORY_PAGE, message.get(0), status, page));
+    }
+
+    private void handleReply(ClusterMessage message) {
+        PendingRequest request = pendingRequests.remove(Long.parseLong(message.get(0)));
+        if (request == null) {
+            return;
+        }
+        String status = message.get(1);
+        switch (message.getType()) {
+            case ClusterMessage.CREATED:
+                ChatServerNio.onRemoteCreated(request.connection, request.roomName, status);
+                break;
+            case ClusterMessage.JOINED:
+                ChatServerNio.onRemoteJoined(request.connection, request.room, status, message.entries(2));
+                break;
+            case ClusterMessage.HISTORY_PAGE:
+                ChatServerNio.onRemoteHistory(request.connection, status, message.entries(2));
+                break;
+        }
+    }
+}
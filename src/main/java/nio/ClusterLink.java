@@ -0,0 +1,95 @@
+package nio;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// исходящая связь с одним узлом кластера: отдельное TCP-соединение только для отправки.
+// сообщения кладут любые потоки (реакторы, читатели других узлов), отправляет
+// виртуальный поток связи. если узел недоступен, поток переподключается,
+// а сообщения ждут в очереди (при переполнении выбрасываются)
+final class ClusterLink {
+    private static final int QUEUE_SIZE = 65536;
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    private static final long RECONNECT_DELAY_MILLIS = 500;
+
+    private final Cluster cluster;
+    private final String node;
+    private final BlockingQueue<ClusterMessage> queue = new LinkedBlockingQueue<>(QUEUE_SIZE);
+    private volatile boolean connected = false;
+
+    ClusterLink(Cluster cluster, String node) {
+        this.cluster = cluster;
+        this.node = node;
+    }
+
+    void start() {
+        Thread.ofVirtual().name("cluster-link").start(this::run);
+    }
+
+    void send(ClusterMessage message) {
+        if (!queue.offer(message)) {
+            Log.warn("очередь к узлу ", node, " переполнена, сообщение выброшено");
+        }
+    }
+
+    // узел признан недоступным: старые сообщения ему уже не нужны, возвращает их
+    List<ClusterMessage> reset() {
+        List<ClusterMessage> unsent = new ArrayList<>();
+        queue.drainTo(unsent);
+        return unsent;
+    }
+
+    boolean isConnected() {
+        return connected;
+    }
+
+    private void run() {
+        int separator = node.lastIndexOf(':');
+        InetSocketAddress address = new InetSocketAddress(node.substring(0, separator),
+                Integer.parseInt(node.substring(separator + 1)));
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(address, CONNECT_TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                cluster.hello().writeTo(out);
+                out.flush();
+                connected = true;
+                Log.info("связь с узлом ", node, " установлена");
+                while (true) {
+                    ClusterMessage message = queue.poll(Cluster.HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+                    if (message == null) {
+                        // на случай, если проверки связи не было: пустая очередь - повод сбросить буфер
+                        out.flush();
+                        continue;
+                    }
+                    message.writeTo(out);
+                    // пока в очереди есть сообщения, копим их в буфере и пишем пачкой
+                    if (queue.isEmpty()) {
+                        out.flush();
+                    }
+                }
+            } catch (IOException e) {
+                if (connected) {
+                    Log.warn("связь с узлом ", node, " потеряна: ", e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            connected = false;
+            try {
+                Thread.sleep(RECONNECT_DELAY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
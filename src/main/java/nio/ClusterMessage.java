@@ -0,0 +1,104 @@
+package nio;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+// сообщение между узлами кластера: [код 1 байт][число полей 2 байта][поля writeUTF].
+// какие поля у какого кода - в комментариях к кодам.
+// requestId - номер запроса у отправившего узла, ответ приходит с тем же номером
+public final class ClusterMessage {
+    // знакомство и проверка связи. nodes - известные узлы через запятую,
+    // получатель подключается к тем, кого еще не знал
+    public static final byte HELLO = 1; // узел, nodes
+    public static final byte PING = 2; // nodes
+    // комната существует; count - участников во всем кластере или -1, если отправитель не владелец
+    public static final byte ROOM = 3; // комната, count
+    // запросы к владельцу комнаты и ответы на них
+    public static final byte CREATE = 4; // requestId, комната, имя клиента
+    public static final byte CREATED = 5; // requestId, статус
+    public static final byte JOIN = 6; // requestId, комната, имя клиента, номер соединения
+    public static final byte JOINED = 7; // requestId, статус, затем пары номер и текст последних сообщений
+    public static final byte LEAVE = 8; // комната, имя клиента
+    // узел и номер соединения отправителя - чтобы сказать ему, если сообщение не доставлено;
+    // hops - сколько раз сообщение уже передавали дальше, пока комната переезжала
+    public static final byte MESSAGE = 9; // комната, имя клиента, текст, узел, номер соединения, hops
+    public static final byte HISTORY = 10; // requestId, комната, номер (пусто - последние)
+    public static final byte HISTORY_PAGE = 11; // requestId, статус, затем пары номер и текст
+    // от владельца узлам, где есть участники: разослать своим участникам комнаты.
+    // кроме соединения exclude (номер, пусто - всем)
+    public static final byte DELIVER = 12; // комната, код MessageType, текст, о ком уведомление, exclude
+    // сколько участников комнаты на отправителе, после смены владельца - без уведомлений в комнату.
+    // прежний владелец так же передает новому участников других узлов, тогда есть поле node
+    public static final byte ATTACH = 13; // комната, count[, node]
+    // отправителю MESSAGE: владельца комнаты так и не нашли, сообщение выброшено
+    public static final byte UNDELIVERED = 14; // комната, номер соединения
+
+    // статусы ответов
+    public static final String OK = "OK";
+    public static final String EXISTS = "EXISTS";
+    public static final String NO_ROOM = "NO_ROOM";
+    public static final String NOT_OWNER = "NOT_OWNER";
+    public static final String EMPTY = "EMPTY";
+    public static final String DISABLED = "DISABLED";
+
+    private final byte type;
+    private final String[] fields;
+
+    public ClusterMessage(byte type, String... fields) {
+        this.type = type;
+        this.fields = fields;
+    }
+
+    // ответ с записями истории: поля заголовка, затем номер и текст каждой записи
+    public static ClusterMessage withEntries(byte type, String requestId, String status,
+                                             List<RoomHistory.Entry> entries) {
+        String[] fields = new String[2 + entries.size() * 2];
+        fields[0] = requestId;
+        fields[1] = status;
+        for (int i = 0; i < entries.size(); i++) {
+            fields[2 + i * 2] = Long.toString(entries.get(i).getSeq());
+            fields[3 + i * 2] = entries.get(i).getMessage();
+        }
+        return new ClusterMessage(type, fields);
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public String get(int index) {
+        return fields[index];
+    }
+
+    public int size() {
+        return fields.length;
+    }
+
+    // пары номер и текст, начиная с поля from
+    public RoomHistory.Entry[] entries(int from) {
+        RoomHistory.Entry[] entries = new RoomHistory.Entry[(fields.length - from) / 2];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = new RoomHistory.Entry(Long.parseLong(fields[from + i * 2]), fields[from + i * 2 + 1]);
+        }
+        return entries;
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeByte(type);
+        out.writeShort(fields.length);
+        for (String field : fields) {
+            out.writeUTF(field);
+        }
+    }
+
+    public static ClusterMessage readFrom(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        String[] fields = new String[in.readUnsignedShort()];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = in.readUTF();
+        }
+        return new ClusterMessage(type, fields);
+    }
+}
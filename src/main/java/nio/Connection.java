@@ -0,0 +1,267 @@
+package nio;
+
+import java.net.InetAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// состояние одного клиентского канала, в движке nio прикрепляется к его SelectionKey.
+// читает и пишет в канал только владелец (реактор или виртуальные потоки соединения),
+// а сообщения в очередь могут класть любые потоки.
+// здесь же имя клиента и его комната: команды находят их по ссылке, без поиска в таблицах
+public class Connection {
+    private static final AtomicLong nextId = new AtomicLong(1);
+
+    // номер соединения на этом сервере, по нему другие узлы кластера ссылаются на клиента
+    private final long id = nextId.getAndIncrement();
+    private final SocketChannel channel;
+    // адрес клиента для лимита подключений с одного адреса
+    private final InetAddress remoteAddress;
+    private final ConnectionOwner owner;
+    // только в движке nio
+    private SelectionKey key;
+    // входящие байты и разбор их на команды
+    private final FrameDecoder decoder;
+    // клиент выбрал бинарный протокол, читается рассылающими потоками
+    private volatile boolean binary = false;
+    // имя (null до регистрации) и текущая комната (null - ни в какой), их меняет RoomRegistry.
+    // имя задает поток владельца, а из комнаты вход может откатить и поток кластера
+    private volatile String name;
+    private final AtomicReference<Room> room = new AtomicReference<>();
+    // "[имя] " в UTF-8 - начало каждого сообщения клиента в комнате, кодируется один раз при регистрации
+    private byte[] messageHeader;
+    // исходящие сообщения, которые еще не ушли в сокет
+    private final OutboundQueue outboundQueue;
+    // реактор уже знает, что очередь нужно отправить
+    private final AtomicBoolean flushPending = new AtomicBoolean();
+    private final AtomicBoolean disconnectRequested = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    // когда подключился и когда последний раз пришли байты (System.nanoTime).
+    // пишет владелец, читает поток, проверяющий сроки
+    private final long connectedAt = System.nanoTime();
+    private volatile long lastReadAt = connectedAt;
+    // когда отправили последний PING, до первого - время подключения
+    private long pingSentAt = connectedAt;
+    // лимиты команд (null - без лимита) и уже предупредили ли клиента о превышении.
+    // ими пользуется только владелец, когда выполняет команды
+    private final TokenBucket messageLimit;
+    private final TokenBucket createLimit;
+    private final TokenBucket commandLimit;
+    private boolean throttled = false;
+    // место в массиве участников комнаты (Room), меняет только она под своим замком порядка
+    int roomSlot = -1;
+    // место в колесе сроков (TimingWheel), меняет только оно
+    Connection timerPrev;
+    Connection timerNext;
+    Connection[] timerSlot;
+    int timerIndex;
+    long timerTick;
+
+    public Connection(SocketChannel channel, ConnectionOwner owner) {
+        this.channel = channel;
+        this.remoteAddress = channel.socket().getInetAddress();
+        this.owner = owner;
+        this.decoder = new FrameDecoder(ServerConfig.MAX_FRAME_LENGTH);
+        this.outboundQueue = new OutboundQueue(ServerConfig.OUTBOUND_HIGH_WATERMARK,
+                ServerConfig.OUTBOUND_LOW_WATERMARK, ServerConfig.OUTBOUND_OVERFLOW_POLICY,
+                ServerConfig.OUTBOUND_COALESCE_LAG_MILLIS);
+        this.messageLimit = limit(ServerConfig.MESSAGE_RATE, ServerConfig.MESSAGE_BURST);
+        this.createLimit = limit(ServerConfig.CREATE_RATE, ServerConfig.CREATE_BURST);
+        this.commandLimit = limit(ServerConfig.COMMAND_RATE, ServerConfig.COMMAND_BURST);
+    }
+
+    private TokenBucket limit(int ratePerSecond, int burst) {
+        return ratePerSecond > 0 ? new TokenBucket(ratePerSecond, burst, connectedAt) : null;
+    }
+
+    // ставим сообщение в очередь и просим владельца его отправить.
+    // ссылка вызывающего на кадр остается у него
+    public void send(SharedFrame frame) {
+        switch (outboundQueue.offer(frame)) {
+            case QUEUED:
+                if (flushPending.compareAndSet(false, true)) {
+                    owner.requestFlush(this);
+                }
+                break;
+            case DROPPED:
+                break;
+            case OVERFLOW:
+                ServerMetrics.shared().slowConsumerDisconnected();
+                disconnect("клиент не успевает читать сообщения, отключаем");
+                break;
+        }
+    }
+
+    // несколько кадров подряд (например, недавние сообщения комнаты для нового участника):
+    // одна постановка в очередь и одна просьба об отправке, реактор отправит их одной записью
+    public void sendAll(SharedFrame[] frames) {
+        if (frames.length == 0) {
+            return;
+        }
+        if (outboundQueue.offerAll(frames) == OutboundQueue.OfferResult.OVERFLOW) {
+            ServerMetrics.shared().slowConsumerDisconnected();
+            disconnect("клиент не успевает читать сообщения, отключаем");
+        } else if (flushPending.compareAndSet(false, true)) {
+            // даже если часть кадров выброшена, остальные нужно отправить
+            owner.requestFlush(this);
+        }
+    }
+
+    public void disconnect(String reason) {
+        disconnect(reason, null);
+    }
+
+    // причина уходит в журнал частями (reason, затем detail): строку склеит поток журнала,
+    // и только если уровень INFO включен
+    public void disconnect(String reason, Object detail) {
+        if (disconnectRequested.compareAndSet(false, true)) {
+            if (reason != null) {
+                Log.info(reason, detail);
+            }
+            owner.requestDisconnect(this);
+        }
+    }
+
+    // возвращает буферы чтения и отправки в пул, вызывается после закрытия канала
+    void releaseBuffers() {
+        outboundQueue.clear();
+        decoder.release();
+    }
+
+    void clearFlushPending() {
+        flushPending.set(false);
+    }
+
+    // закрытие уже запрошено
+    boolean isDisconnectRequested() {
+        return disconnectRequested.get();
+    }
+
+    // true только для первого вызова
+    boolean markClosed() {
+        disconnectRequested.set(true);
+        return closed.compareAndSet(false, true);
+    }
+
+    // от клиента пришли байты: любые данные, в том числе PONG, показывают, что он на связи
+    void touch(long now) {
+        lastReadAt = now;
+    }
+
+    long getConnectedAt() {
+        return connectedAt;
+    }
+
+    long getLastReadAt() {
+        return lastReadAt;
+    }
+
+    long getPingSentAt() {
+        return pingSentAt;
+    }
+
+    void setPingSentAt(long pingSentAt) {
+        this.pingSentAt = pingSentAt;
+    }
+
+    // укладывается ли команда в свой лимит. now - время чтения команды
+    boolean tryCommand(byte opcode, long now) {
+        TokenBucket limit;
+        switch (opcode) {
+            case Protocol.MESSAGE:
+                limit = messageLimit;
+                break;
+            case Protocol.CREATE:
+                limit = createLimit;
+                break;
+            default:
+                limit = commandLimit;
+        }
+        return limit == null || limit.tryTake(now);
+    }
+
+    // true, если о превышении лимита клиента еще не предупреждали в этой серии
+    boolean markThrottled() {
+        boolean first = !throttled;
+        throttled = true;
+        return first;
+    }
+
+    void clearThrottled() {
+        throttled = false;
+    }
+
+    public InetAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    public SelectionKey getKey() {
+        return key;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    // вызывается владельцем при разборе команды PROTO:BINARY
+    void switchToBinary() {
+        decoder.switchToBinary();
+        binary = true;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isRegistered() {
+        return name != null;
+    }
+
+    void setName(String name) {
+        this.name = name;
+    }
+
+    public Room getRoom() {
+        return room.get();
+    }
+
+    // возвращает прежнюю комнату
+    Room swapRoom(Room newRoom) {
+        return room.getAndSet(newRoom);
+    }
+
+    // false, если клиент уже не в комнате expected
+    boolean leaveRoom(Room expected) {
+        return room.compareAndSet(expected, null);
+    }
+
+    public byte[] getMessageHeader() {
+        return messageHeader;
+    }
+
+    void setMessageHeader(byte[] messageHeader) {
+        this.messageHeader = messageHeader;
+    }
+
+    public FrameDecoder getDecoder() {
+        return decoder;
+    }
+
+    public OutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+}
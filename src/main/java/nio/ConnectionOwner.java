@@ -0,0 +1,12 @@
+package nio;
+
+// тот, кто читает и пишет канал соединения: реактор (движок nio)
+// или виртуальные потоки соединения (движок virtual).
+// остальные потоки только просят его об отправке или закрытии
+public interface ConnectionOwner {
+    // в очереди соединения появились сообщения
+    void requestFlush(Connection connection);
+
+    // закрыть соединение, когда это безопасно для владельца
+    void requestDisconnect(Connection connection);
+}
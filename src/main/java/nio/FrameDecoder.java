@@ -0,0 +1,224 @@
+package nio;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// собирает команды клиента из байтов, пришедших по сети.
+// в текстовом режиме команда - строка TYPE:payload\n, в бинарном - кадр
+// [код][varint длина][тело] (см. Protocol).
+// за одно чтение может прийти ноль, одна или несколько команд,
+// а неполная команда остается в буфере до следующего чтения
+public class FrameDecoder {
+    // байты команды копируются сюда из direct-буфера, чтобы сделать из них строку
+    private static final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[0]);
+    // самая частая текстовая команда узнается по байтам, без строки
+    private static final byte[] TEXT_MESSAGE_PREFIX = "MESSAGE:".getBytes(StandardCharsets.US_ASCII);
+
+    // буфер из пула, всегда в режиме записи: канал читает в него напрямую
+    private final ByteBuffer buffer;
+    private final BufferPool.LeakTracker leakTracker;
+    private boolean binary = false;
+    // начало текущей (еще не выданной) команды
+    private int frameStart = 0;
+    // с какого байта продолжать искать '\n', чтобы не сканировать заново
+    private int scanFrom = 0;
+    // строка не влезла в буфер - пропускаем ее до конца
+    private boolean discarding = false;
+    // сколько байт слишком длинного бинарного кадра еще нужно пропустить
+    private int bytesToSkip = 0;
+    private boolean overflowed = false;
+
+    // последняя разобранная команда
+    private byte opcode;
+    private String text;
+    private int roomId;
+    // тело MESSAGE в buffer: строкой оно не декодируется, сервер пересылает байты
+    private int bodyStart;
+    private int bodyLength;
+
+    // максимальная длина команды округляется вверх до размера буфера из пула
+    public FrameDecoder(int maxFrameLength) {
+        this.buffer = BufferPool.shared().acquire(maxFrameLength);
+        this.leakTracker = BufferPool.shared().track(this);
+    }
+
+    // возвращает буфер в пул, после закрытия соединения
+    public void release() {
+        if (leakTracker != null) {
+            leakTracker.close();
+        }
+        BufferPool.shared().release(buffer);
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    // следующие команды (в том числе уже лежащие в буфере) разбираются как бинарные кадры
+    public void switchToBinary() {
+        binary = true;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    // код команды из Protocol
+    public byte getOpcode() {
+        return opcode;
+    }
+
+    // тело команды строкой (для бинарного JOIN и для MESSAGE - null)
+    public String getText() {
+        return text;
+    }
+
+    // номер комнаты бинарной команды JOIN
+    public int getRoomId() {
+        return roomId;
+    }
+
+    // тело MESSAGE - байты getBuffer() с bodyStart длиной bodyLength, UTF-8 не проверен.
+    // действительны до следующего вызова next()
+    public int getBodyStart() {
+        return bodyStart;
+    }
+
+    public int getBodyLength() {
+        return bodyLength;
+    }
+
+    // разбирает следующую полную команду, false если ее пока нет.
+    // результат - в getOpcode/getText/getRoomId
+    public boolean next() {
+        return binary ? nextBinary() : nextText();
+    }
+
+    // была ли с прошлого вызова команда длиннее буфера (флаг сбрасывается)
+    public boolean consumeOverflow() {
+        boolean result = overflowed;
+        overflowed = false;
+        return result;
+    }
+
+    private boolean nextText() {
+        int end = buffer.position();
+        for (int i = scanFrom; i < end; i++) {
+            if (buffer.get(i) != '\n') {
+                continue;
+            }
+            int start = frameStart;
+            frameStart = i + 1;
+            scanFrom = frameStart;
+            if (discarding) {
+                // это конец слишком длинной строки
+                discarding = false;
+                continue;
+            }
+            int length = i - start;
+            if (length > 0 && buffer.get(i - 1) == '\r') {
+                length--;
+            }
+            if (startsWith(start, length, TEXT_MESSAGE_PREFIX)) {
+                opcode = Protocol.MESSAGE;
+                text = null;
+                bodyStart = start + TEXT_MESSAGE_PREFIX.length;
+                bodyLength = length - TEXT_MESSAGE_PREFIX.length;
+                return true;
+            }
+            String line = decodeString(start, length);
+            // парсим протокол сообщений от клиента, строки без типа пропускаем
+            int separator = line.indexOf(':');
+            if (separator < 0) {
+                continue;
+            }
+            opcode = Protocol.commandOpcode(line.substring(0, separator));
+            text = line.substring(separator + 1);
+            return true;
+        }
+        compact(end);
+        return false;
+    }
+
+    private boolean nextBinary() {
+        int end = buffer.position();
+        if (bytesToSkip > 0) {
+            int skipped = Math.min(bytesToSkip, end - frameStart);
+            bytesToSkip -= skipped;
+            frameStart += skipped;
+        }
+        while (bytesToSkip == 0 && end - frameStart >= 2) {
+            // неверная длина бросает IllegalArgumentException, соединение закрывается
+            int length = Protocol.getVarint(buffer, frameStart + 1, end);
+            if (length < 0) {
+                break; // длина пришла не целиком
+            }
+            int bodyStart = frameStart + 1 + Protocol.varintSize(length);
+            if (bodyStart - frameStart + length > buffer.capacity()) {
+                // кадр не поместится в буфер никогда - пропускаем его целиком
+                overflowed = true;
+                bytesToSkip = bodyStart + length - end;
+                frameStart = end;
+                break;
+            }
+            if (bodyStart + length > end) {
+                break;
+            }
+            opcode = buffer.get(frameStart);
+            frameStart = bodyStart + length;
+            if (opcode == Protocol.JOIN) {
+                text = null;
+                roomId = Protocol.getVarint(buffer, bodyStart, frameStart);
+            } else if (opcode == Protocol.MESSAGE) {
+                text = null;
+                this.bodyStart = bodyStart;
+                bodyLength = length;
+            } else {
+                text = decodeString(bodyStart, length);
+            }
+            return true;
+        }
+        compact(end);
+        return false;
+    }
+
+    private boolean startsWith(int start, int length, byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer.get(start + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String decodeString(int start, int length) {
+        byte[] bytes = scratch.get();
+        if (bytes.length < length) {
+            bytes = new byte[buffer.capacity()];
+            scratch.set(bytes);
+        }
+        buffer.get(start, bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private void compact(int end) {
+        if (discarding || (frameStart == end && frameStart > 0)) {
+            // хвост длинной строки нам не нужен, либо все разобрано
+            buffer.clear();
+        } else if (frameStart > 0) {
+            // переносим неполную команду в начало буфера
+            buffer.limit(end).position(frameStart);
+            buffer.compact();
+        } else if (!buffer.hasRemaining()) {
+            // буфер заполнен, а конца строки нет
+            discarding = true;
+            overflowed = true;
+            buffer.clear();
+        }
+        frameStart = 0;
+        scanFrom = buffer.position();
+    }
+}
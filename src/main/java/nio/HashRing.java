@@ -0,0 +1,69 @@
+package nio;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+
+// кольцо консистентного хеширования: какой узел кластера владеет комнатой.
+// у каждого узла много виртуальных точек на кольце, комната принадлежит первой точке
+// по часовой стрелке от хеша ее названия. при уходе или появлении узла
+// меняют владельца только комнаты между его точками и соседними.
+// кольцо неизменяемое, при изменении состава кластера строится новое
+public final class HashRing {
+    private final long[] points;
+    private final String[] nodes;
+
+    public HashRing(Collection<String> nodeIds, int pointsPerNode) {
+        int count = nodeIds.size() * pointsPerNode;
+        long[] hashes = new long[count];
+        String[] owners = new String[count];
+        int i = 0;
+        for (String node : nodeIds) {
+            for (int point = 0; point < pointsPerNode; point++) {
+                hashes[i] = hash(node + "#" + point);
+                owners[i] = node;
+                i++;
+            }
+        }
+        // сортируем точки вместе с владельцами
+        Integer[] order = new Integer[count];
+        for (int j = 0; j < count; j++) {
+            order[j] = j;
+        }
+        // при совпадении хешей порядок по узлу, чтобы на всех узлах кольцо было одинаковым
+        Arrays.sort(order, (a, b) -> hashes[a] != hashes[b]
+                ? Long.compare(hashes[a], hashes[b]) : owners[a].compareTo(owners[b]));
+        this.points = new long[count];
+        this.nodes = new String[count];
+        for (int j = 0; j < count; j++) {
+            points[j] = hashes[order[j]];
+            nodes[j] = owners[order[j]];
+        }
+    }
+
+    // null, если узлов нет
+    public String ownerOf(String roomName) {
+        if (points.length == 0) {
+            return null;
+        }
+        int index = Arrays.binarySearch(points, hash(roomName));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return nodes[index == points.length ? 0 : index];
+    }
+
+    // FNV-1a по байтам UTF-8 с перемешиванием в конце: одинаковый на всех узлах,
+    // в отличие от String.hashCode хорошо раскидывает похожие названия
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,96 @@
+package nio;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// каталог с историей всех комнат.
+// у каждой комнаты свой подкаталог room-N: файл name с названием комнаты (UTF-8)
+// и сегменты журнала RoomHistory. названия комнат не используются как имена файлов,
+// потому что в них может быть что угодно.
+// каталог занимает один процесс: пока сервер работает, он держит блокировку файла lock,
+// второй сервер с тем же каталогом не запустится, иначе оба писали бы в одни сегменты
+public class HistoryStore {
+    private static final String ROOM_PREFIX = "room-";
+    private static final String NAME_FILE = "name";
+    private static final String LOCK_FILE = "lock";
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final AtomicInteger nextRoomNumber = new AtomicInteger(1);
+    // блокировка каталога, держим ссылку до конца работы процесса (или до close)
+    private final FileLock lock;
+
+    public HistoryStore(Path directory, int segmentSize, int maxSegments) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        Files.createDirectories(directory);
+        this.lock = lockDirectory(directory);
+    }
+
+    private static FileLock lockDirectory(Path directory) throws IOException {
+        FileChannel channel = FileChannel.open(directory.resolve(LOCK_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null; // каталог уже открыт в этом же процессе
+        }
+        if (lock == null) {
+            channel.close();
+            throw new IOException("каталог истории " + directory + " занят другим сервером");
+        }
+        return lock;
+    }
+
+    // отпускает каталог (сегменты комнат закрываются отдельно)
+    public void close() throws IOException {
+        lock.channel().close();
+    }
+
+    // истории комнат, сохраненных при прошлых запусках: название - история
+    public Map<String, RoomHistory> recover() throws IOException {
+        Map<String, RoomHistory> histories = new LinkedHashMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, ROOM_PREFIX + "*")) {
+            for (Path roomDirectory : stream) {
+                Path nameFile = roomDirectory.resolve(NAME_FILE);
+                int number = parseRoomNumber(roomDirectory);
+                if (number < 0 || !Files.isRegularFile(nameFile)) {
+                    continue;
+                }
+                nextRoomNumber.accumulateAndGet(number + 1, Math::max);
+                String roomName = Files.readString(nameFile, StandardCharsets.UTF_8);
+                histories.putIfAbsent(roomName, RoomHistory.open(roomDirectory, segmentSize, maxSegments));
+            }
+        }
+        return histories;
+    }
+
+    // пустая история для новой комнаты
+    public RoomHistory create(String roomName) throws IOException {
+        Path roomDirectory = directory.resolve(ROOM_PREFIX + nextRoomNumber.getAndIncrement());
+        Files.createDirectories(roomDirectory);
+        Files.writeString(roomDirectory.resolve(NAME_FILE), roomName, StandardCharsets.UTF_8);
+        return RoomHistory.open(roomDirectory, segmentSize, maxSegments);
+    }
+
+    private static int parseRoomNumber(Path roomDirectory) {
+        try {
+            return Integer.parseInt(roomDirectory.getFileName().toString().substring(ROOM_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
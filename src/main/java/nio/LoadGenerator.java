@@ -0,0 +1,265 @@
+package nio;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// нагрузочный клиент без окон: открывает много соединений по текстовому протоколу,
+// раскладывает их по комнатам и шлет MESSAGE с заданной суммарной частотой.
+// в каждое сообщение вшито время отправки (System.nanoTime), поэтому получатели
+// из этого же процесса считают задержку доставки через сервер.
+// каждое соединение обслуживают два виртуальных потока - чтение и отправка.
+//
+// настройки (-D...):
+//   chat.load.host      адрес сервера (localhost)
+//   chat.load.port      порт сервера (8080)
+//   chat.load.clients   число соединений (100)
+//   chat.load.rooms     число комнат (10)
+//   chat.load.rate      сообщений в секунду от всех клиентов вместе (1000)
+//   chat.load.seconds   длительность отправки (30)
+//   chat.load.size      длина тела сообщения в байтах (64)
+//
+// сервер по умолчанию пускает 50 соединений и 20 сообщений в секунду от клиента:
+// для большой нагрузки запускайте его с -Dchat.admission.maxConnections и -Dchat.limit.messageRate=0
+public class LoadGenerator {
+    private static final String HOST = System.getProperty("chat.load.host", "localhost");
+    private static final int PORT = Integer.getInteger("chat.load.port", 8080);
+    private static final int CLIENTS = Integer.getInteger("chat.load.clients", 100);
+    private static final int ROOMS = Math.max(1, Math.min(Integer.getInteger("chat.load.rooms", 10), CLIENTS));
+    private static final int RATE = Integer.getInteger("chat.load.rate", 1000);
+    private static final int SECONDS = Integer.getInteger("chat.load.seconds", 30);
+    private static final int MESSAGE_SIZE = Integer.getInteger("chat.load.size", 64);
+
+    // сколько ждем регистрации и входа в комнаты
+    private static final long SETUP_TIMEOUT_SECONDS = 30;
+    // сколько ждем доставки последних сообщений после остановки отправки
+    private static final long DRAIN_MILLIS = 2000;
+    private static final String TIMESTAMP_MARKER = "] t=";
+
+    // задержки в микросекундах: за весь прогон и за последнюю секунду
+    private static final LatencyHistogram totalLatency = new LatencyHistogram();
+    private static final LatencyHistogram intervalLatency = new LatencyHistogram();
+    private static final LongAdder sent = new LongAdder();
+    private static final LongAdder received = new LongAdder();
+    private static final LongAdder failed = new LongAdder();
+
+    private static final CountDownLatch roomsReady = new CountDownLatch(ROOMS);
+    private static final CountDownLatch clientsJoined = new CountDownLatch(CLIENTS);
+    private static final CountDownLatch startSending = new CountDownLatch(1);
+    private static volatile long deadline;
+
+    public static void main(String[] args) throws InterruptedException {
+        System.out.println("нагрузка на " + HOST + ":" + PORT + ": клиентов " + CLIENTS + ", комнат " + ROOMS
+                + ", " + RATE + " сообщ/с, " + SECONDS + " с");
+
+        // уникальный префикс, чтобы повторные прогоны не мешали друг другу на одном сервере
+        String run = Long.toString(System.currentTimeMillis() % 100000, 36);
+        List<LoadClient> clients = new ArrayList<>(CLIENTS);
+        for (int i = 0; i < CLIENTS; i++) {
+            LoadClient client = new LoadClient(i, run);
+            clients.add(client);
+            Thread.ofVirtual().name("load-" + i).start(client::run);
+        }
+
+        if (!clientsJoined.await(SETUP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            System.out.println("не все клиенты вошли в комнаты за " + SETUP_TIMEOUT_SECONDS + " с");
+        }
+        System.out.println("подключено: " + (CLIENTS - failed.sum()) + ", ошибок: " + failed.sum());
+
+        long start = System.nanoTime();
+        deadline = start + TimeUnit.SECONDS.toNanos(SECONDS);
+        startSending.countDown();
+
+        long lastSent = 0;
+        long lastReceived = 0;
+        for (int second = 1; second <= SECONDS; second++) {
+            LockSupport.parkNanos(start + TimeUnit.SECONDS.toNanos(second) - System.nanoTime());
+            long sentNow = sent.sum();
+            long receivedNow = received.sum();
+            System.out.println(second + " с: отправлено " + (sentNow - lastSent) + "/с, доставлено "
+                    + (receivedNow - lastReceived) + "/с, " + formatLatency(intervalLatency));
+            intervalLatency.reset();
+            lastSent = sentNow;
+            lastReceived = receivedNow;
+        }
+
+        Thread.sleep(DRAIN_MILLIS);
+        for (LoadClient client : clients) {
+            client.close();
+        }
+
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        System.out.println("итого: отправлено " + sent.sum() + ", доставлено " + received.sum()
+                + String.format(" (%.0f/с)", received.sum() / elapsed) + ", ошибок соединения " + failed.sum());
+        System.out.println("задержка доставки: " + formatLatency(totalLatency)
+                + String.format(", среднее %.2f мс", totalLatency.getMean() / 1000.0));
+    }
+
+    private static String formatLatency(LatencyHistogram histogram) {
+        return String.format("p50 %.2f мс, p99 %.2f мс, p999 %.2f мс, max %.2f мс",
+                histogram.getPercentile(50) / 1000.0,
+                histogram.getPercentile(99) / 1000.0,
+                histogram.getPercentile(99.9) / 1000.0,
+                histogram.getMax() / 1000.0);
+    }
+
+    // одно соединение: сначала регистрация и вход в комнату, потом отправка с постоянной частотой
+    private static class LoadClient {
+        private final int index;
+        private final String name;
+        private final String roomName;
+        private final boolean creator;
+        private Socket socket;
+        private OutputStream out;
+        private boolean roomCounted = false;
+        private boolean joinCounted = false;
+
+        LoadClient(int index, String run) {
+            this.index = index;
+            this.name = "load-" + run + "-" + index;
+            this.roomName = "load-" + run + "-room-" + (index % ROOMS);
+            // первые ROOMS клиентов создают по комнате
+            this.creator = index < ROOMS;
+        }
+
+        void run() {
+            try {
+                socket = new Socket(HOST, PORT);
+                socket.setTcpNoDelay(true);
+                out = socket.getOutputStream();
+                Thread.ofVirtual().name("load-reader-" + index).start(this::readLoop);
+
+                send("NAME:" + name);
+                if (creator) {
+                    send("CREATE:" + roomName);
+                }
+                if (!roomsReady.await(SETUP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    throw new IOException("комнаты не созданы");
+                }
+                send("JOIN:" + roomName);
+
+                startSending.await();
+                sendLoop();
+            } catch (IOException e) {
+                fail();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void sendLoop() throws IOException {
+            // каждый клиент шлет RATE / CLIENTS сообщений в секунду со случайным сдвигом,
+            // чтобы отправки не шли пачками
+            long interval = TimeUnit.SECONDS.toNanos(1) * CLIENTS / Math.max(1, RATE);
+            long next = System.nanoTime() + ThreadLocalRandom.current().nextLong(Math.max(1, interval));
+            StringBuilder padding = new StringBuilder();
+            while (padding.length() < MESSAGE_SIZE) {
+                padding.append('x');
+            }
+            while (next < deadline) {
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                // вшиваем запланированное время, а не фактическое: если сервер
+                // тормозит отправку, это тоже попадет в задержку
+                send("MESSAGE:t=" + next + " " + padding);
+                sent.increment();
+                next += interval;
+            }
+        }
+
+        private void readLoop() {
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith("MESSAGE:")) {
+                        onMessage(line);
+                    } else if (line.startsWith("SYSTEM:")) {
+                        onSystem(line);
+                    } else if (line.startsWith("PING:")) {
+                        // получатели без отправки молчат, без ответа сервер их отключит
+                        send("PONG:");
+                    }
+                }
+            } catch (IOException e) {
+                // соединение закрыто
+            }
+            if (!joinCounted) {
+                fail();
+            }
+        }
+
+        private void onMessage(String line) {
+            long now = System.nanoTime();
+            int marker = line.indexOf(TIMESTAMP_MARKER);
+            if (marker < 0) {
+                return;
+            }
+            int start = marker + TIMESTAMP_MARKER.length();
+            int end = line.indexOf(' ', start);
+            try {
+                long sentAt = Long.parseLong(line, start, end < 0 ? line.length() : end, 10);
+                long micros = (now - sentAt) / 1000;
+                totalLatency.record(micros);
+                intervalLatency.record(micros);
+                received.increment();
+            } catch (NumberFormatException e) {
+                // чужое сообщение
+            }
+        }
+
+        private synchronized void onSystem(String line) {
+            if (creator && !roomCounted
+                    && (line.contains("вы создали комнату") || line.contains("комната уже существует"))) {
+                roomCounted = true;
+                roomsReady.countDown();
+            } else if (!joinCounted && line.contains("вы в комнате")) {
+                joinCounted = true;
+                clientsJoined.countDown();
+            }
+        }
+
+        // соединение не удалось - не задерживаем остальных
+        private synchronized void fail() {
+            if (creator && !roomCounted) {
+                roomCounted = true;
+                roomsReady.countDown();
+            }
+            if (!joinCounted) {
+                joinCounted = true;
+                clientsJoined.countDown();
+                failed.increment();
+            }
+        }
+
+        // пишут поток отправки и читающий поток (ответ на PING)
+        private void send(String command) throws IOException {
+            synchronized (out) {
+                out.write((command + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            }
+        }
+
+        void close() {
+            try {
+                if (socket != null) {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                // уже закрыт
+            }
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package nio;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// асинхронный журнал сервера и клиента.
+// вызывающий поток (реактор, читатель клиента) только кладет части записи в кольцевой буфер
+// без блокировок и без выделения памяти, а склеивает их в строку и пишет в консоль
+// пачками фоновый поток. если буфер заполнен, запись выбрасывается, а не тормозит вызывающего.
+// поэтому на частых путях текст передается частями, а не склеивается заранее (склейка и
+// упаковка чисел выделяют память даже при выключенном уровне), а то, что дорого вычислить,
+// строится только после проверки isEnabled.
+//
+// настройки (-D...):
+//   chat.log.level       DEBUG, INFO, WARN, ERROR или OFF (INFO). сообщения чата пишутся на DEBUG
+//   chat.log.bufferSize  сколько записей помещается в буфер (8192, округляется до степени двойки)
+public final class Log {
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    private static final Level LEVEL = Level.valueOf(System.getProperty("chat.log.level", "INFO").toUpperCase());
+    private static final int CAPACITY = Integer.highestOneBit(Math.max(2, Integer.getInteger("chat.log.bufferSize", 8192) - 1)) << 1;
+    private static final int MASK = CAPACITY - 1;
+    // сколько фоновый поток спит, когда буфер пуст
+    private static final long IDLE_PARK_NANOS = 5_000_000;
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    // записи заранее созданы и переиспользуются
+    private static final Entry[] entries = new Entry[CAPACITY];
+    // номер записи, которую ждет ячейка: позиция - ячейка свободна для писателя,
+    // позиция + 1 - запись готова для фонового потока
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    // следующая позиция для писателей
+    private static final AtomicLong tail = new AtomicLong();
+    // следующая позиция для фонового потока, меняет только он
+    private static long head = 0;
+    private static final LongAdder dropped = new LongAdder();
+    private static final PrintStream out = System.out;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            entries[i] = new Entry();
+            sequences.set(i, i);
+        }
+        if (LEVEL != Level.OFF) {
+            Thread writer = new Thread(Log::writeLoop, "log-writer");
+            writer.setDaemon(true);
+            writer.start();
+            // при выходе дописываем то, что осталось в буфере
+            Runtime.getRuntime().addShutdownHook(new Thread(Log::drain, "log-shutdown"));
+        }
+    }
+
+    // одна запись: текст - это части, склеенные подряд (Throwable печатается со стеком)
+    private static final class Entry {
+        private Level level;
+        private long time;
+        private Object part1;
+        private Object part2;
+        private Object part3;
+        private Object part4;
+    }
+
+    private Log() {
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(LEVEL) >= 0 && level != Level.OFF;
+    }
+
+    public static void debug(Object part1) {
+        log(Level.DEBUG, part1, null, null, null);
+    }
+
+    public static void debug(Object part1, Object part2) {
+        log(Level.DEBUG, part1, part2, null, null);
+    }
+
+    public static void debug(Object part1, Object part2, Object part3) {
+        log(Level.DEBUG, part1, part2, part3, null);
+    }
+
+    public static void debug(Object part1, Object part2, Object part3, Object part4) {
+        log(Level.DEBUG, part1, part2, part3, part4);
+    }
+
+    public static void info(Object part1) {
+        log(Level.INFO, part1, null, null, null);
+    }
+
+    public static void info(Object part1, Object part2) {
+        log(Level.INFO, part1, part2, null, null);
+    }
+
+    public static void info(Object part1, Object part2, Object part3) {
+        log(Level.INFO, part1, part2, part3, null);
+    }
+
+    public static void info(Object part1, Object part2, Object part3, Object part4) {
+        log(Level.INFO, part1, part2, part3, part4);
+    }
+
+    public static void warn(Object part1) {
+        log(Level.WARN, part1, null, null, null);
+    }
+
+    public static void warn(Object part1, Object part2) {
+        log(Level.WARN, part1, part2, null, null);
+    }
+
+    public static void warn(Object part1, Object part2, Object part3) {
+        log(Level.WARN, part1, part2, part3, null);
+    }
+
+    public static void warn(Object part1, Object part2, Object part3, Object part4) {
+        log(Level.WARN, part1, part2, part3, part4);
+    }
+
+    public static void error(Object part1) {
+        log(Level.ERROR, part1, null, null, null);
+    }
+
+    public static void error(Object part1, Object part2) {
+        log(Level.ERROR, part1, part2, null, null);
+    }
+
+    public static void error(Object part1, Object part2, Object part3) {
+        log(Level.ERROR, part1, part2, part3, null);
+    }
+
+    public static void error(Object part1, Object part2, Object part3, Object part4) {
+        log(Level.ERROR, part1, part2, part3, part4);
+    }
+
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    private static void log(Level level, Object part1, Object part2, Object part3, Object part4) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        // занимаем ячейку: несколько писателей соревнуются за tail через CAS
+        long position = tail.get();
+        while (true) {
+            long available = sequences.get((int) position & MASK) - position;
+            if (available == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (available < 0) {
+                // фоновый поток еще не освободил ячейку - буфер полон
+                dropped.increment();
+                return;
+            } else {
+                position = tail.get();
+            }
+        }
+        Entry entry = entries[(int) position & MASK];
+        entry.level = level;
+        entry.time = System.currentTimeMillis();
+        entry.part1 = part1;
+        entry.part2 = part2;
+        entry.part3 = part3;
+        entry.part4 = part4;
+        // публикуем запись для фонового потока
+        sequences.set((int) position & MASK, position + 1);
+    }
+
+    private static void writeLoop() {
+        while (true) {
+            if (!drain()) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    // пишет все готовые записи одной пачкой, false если писать было нечего
+    private static synchronized boolean drain() {
+        StringBuilder batch = new StringBuilder();
+        long lastDropped = dropped.sumThenReset();
+        if (lastDropped > 0) {
+            batch.append("журнал не успевает, пропущено записей: ").append(lastDropped).append('\n');
+        }
+        while (true) {
+            int index = (int) head & MASK;
+            if (sequences.get(index) != head + 1) {
+                break;
+            }
+            Entry entry = entries[index];
+            format(batch, entry);
+            entry.part1 = entry.part2 = entry.part3 = entry.part4 = null;
+            // ячейка снова свободна для писателя, который придет на круг позже
+            sequences.set(index, head + CAPACITY);
+            head++;
+        }
+        if (batch.isEmpty()) {
+            return false;
+        }
+        out.print(batch);
+        out.flush();
+        return true;
+    }
+
+    private static void format(StringBuilder batch, Entry entry) {
+        TIME_FORMAT.formatTo(Instant.ofEpochMilli(entry.time), batch);
+        batch.append(' ').append(entry.level).append(' ');
+        Throwable throwable = null;
+        for (Object part : new Object[]{entry.part1, entry.part2, entry.part3, entry.part4}) {
+            if (part instanceof Throwable) {
+                throwable = (Throwable) part;
+            } else if (part != null) {
+                batch.append(part);
+            }
+        }
+        batch.append('\n');
+        if (throwable != null) {
+            StringWriter trace = new StringWriter();
+            throwable.printStackTrace(new PrintWriter(trace));
+            batch.append(trace);
+        }
+    }
+}
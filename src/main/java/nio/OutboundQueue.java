@@ -0,0 +1,337 @@
+package nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// очередь исходящих сообщений одного клиента.
+// если клиент не успевает читать, данные копятся здесь,
+// а селектор дописывает их, когда канал снова готов к записи (OP_WRITE).
+// класть сообщения может любой поток, отправляет только владелец канала.
+//
+// очередь следит, с какой скоростью клиент забирает данные. если при такой скорости
+// накопленное будет уходить дольше coalesceLagMillis (или запись стоит столько времени),
+// очередь переходит в режим склейки, пока снова не опустеет:
+// - сообщения чата копируются подряд в свой буфер, а не ждут по кадру на каждое.
+//   общие кадры рассылки сразу отпускаются, и отправка идет крупными кусками
+// - вход и выход одного участника, которые клиент еще не получил, взаимно уничтожаются
+// отключение (или выбрасывание) по-прежнему только после верхней отметки
+public class OutboundQueue {
+    // что делать с клиентом, который слишком отстал
+    public enum OverflowPolicy {
+        DROP, // выбрасываем новые сообщения, пока очередь не опустится ниже нижней отметки
+        DISCONNECT // отключаем клиента
+    }
+
+    // результат постановки сообщения в очередь
+    public enum OfferResult {
+        QUEUED,
+        DROPPED,
+        OVERFLOW // клиента нужно отключить
+    }
+
+    // сколько кадров отдаем каналу за одну gathering-запись
+    private static final int MAX_GATHER = 64;
+    // буфер, в который склеиваются сообщения отставшего клиента (размер класса пула)
+    private static final int COALESCE_BUFFER_SIZE = 16 * 1024;
+    // вес нового замера в скользящей средней скорости отправки
+    private static final double DRAIN_RATE_ALPHA = 0.25;
+    private static final ServerMetrics metrics = ServerMetrics.shared();
+
+    // кадры и позиции отправки в них, идут парами
+    private final ArrayDeque<SharedFrame> frames = new ArrayDeque<>();
+    private final ArrayDeque<ByteBuffer> views = new ArrayDeque<>();
+    private final int highWatermark;
+    private final int lowWatermark;
+    private final OverflowPolicy policy;
+    // 0 - склейка выключена
+    private final long coalesceLagNanos;
+    private long queuedBytes = 0;
+    // клиент превысил верхнюю отметку и еще не разгрузился до нижней
+    private boolean lagging = false;
+    private long droppedFrames = 0;
+    // соединение закрыто, новые кадры не принимаем
+    private boolean closed = false;
+    // представления кадров для одной записи, чтобы не выделять массив каждый раз
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+    // скорость отправки клиенту, байт в секунду (скользящая средняя по записям)
+    private double drainRate = 0;
+    // с какого момента данные в очереди ждут: последняя запись или появление первого кадра
+    private long waitingSince;
+    // клиент отстает, очередь склеивает сообщения
+    private boolean coalescing = false;
+    // кадр, в который дописываются сообщения, и его представление в очереди
+    private SharedFrame coalesceFrame;
+    private ByteBuffer coalesceView;
+    // еще не отправленные уведомления о входе и выходе, по участнику
+    private final Map<String, ByteBuffer> pendingNotices = new HashMap<>();
+
+    public OutboundQueue(int highWatermark, int lowWatermark, OverflowPolicy policy, long coalesceLagMillis) {
+        if (lowWatermark > highWatermark) {
+            throw new IllegalArgumentException("нижняя отметка больше верхней: " + lowWatermark + " > " + highWatermark);
+        }
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.policy = policy;
+        this.coalesceLagNanos = coalesceLagMillis * 1_000_000;
+    }
+
+    // при успешной постановке очередь берет свою ссылку на кадр
+    public synchronized OfferResult offer(SharedFrame frame) {
+        if (closed) {
+            return OfferResult.DROPPED;
+        }
+        if (lagging || queuedBytes + frame.size() > highWatermark) {
+            lagging = true;
+            if (policy == OverflowPolicy.DISCONNECT) {
+                return OfferResult.OVERFLOW;
+            }
+            droppedFrames++;
+            metrics.frameDropped();
+            return OfferResult.DROPPED;
+        }
+        if (frames.isEmpty()) {
+            waitingSince = System.nanoTime();
+        } else if (!coalescing && coalesceLagNanos > 0 && isFallingBehind()) {
+            coalescing = true;
+            metrics.coalescingStarted();
+        }
+        if (coalescing && frame.type() == Protocol.MessageType.MESSAGE && appendToCoalesced(frame)) {
+            return OfferResult.QUEUED;
+        }
+        if (coalescing && frame.subject() != null && cancelNotice(frame.subject())) {
+            return OfferResult.QUEUED;
+        }
+        ByteBuffer view = frame.view();
+        frames.addLast(frame.retain());
+        views.addLast(view);
+        queuedBytes += frame.size();
+        metrics.queuedBytesChanged(frame.size());
+        if (coalescing && frame.subject() != null) {
+            pendingNotices.put(frame.subject(), view);
+        }
+        return OfferResult.QUEUED;
+    }
+
+    // уйдет ли очередь за допустимое время при нынешней скорости клиента
+    private boolean isFallingBehind() {
+        long waited = System.nanoTime() - waitingSince;
+        if (waited > coalesceLagNanos) {
+            // запись стоит: клиент вообще не читает
+            return true;
+        }
+        return drainRate > 0 && queuedBytes / drainRate * 1e9 > coalesceLagNanos;
+    }
+
+    // дописывает сообщение в буфер склейки в конце очереди, false если его нужно поставить отдельно
+    private boolean appendToCoalesced(SharedFrame frame) {
+        int size = frame.size();
+        if (size > COALESCE_BUFFER_SIZE) {
+            return false;
+        }
+        // дописывать можно только в последний кадр очереди, который еще не начали отправлять
+        // (первый кадр пишущий поток движка virtual отправляет без замка)
+        boolean writable = coalesceView != null && views.peekLast() == coalesceView
+                && views.peekFirst() != coalesceView
+                && coalesceFrame.buffer().remaining() >= size;
+        if (!writable) {
+            coalesceFrame = SharedFrame.allocate(COALESCE_BUFFER_SIZE);
+            coalesceView = coalesceFrame.buffer().duplicate();
+            coalesceView.limit(0);
+            frames.addLast(coalesceFrame);
+            views.addLast(coalesceView);
+        }
+        coalesceFrame.buffer().put(frame.view());
+        coalesceView.limit(coalesceFrame.buffer().position());
+        queuedBytes += size;
+        metrics.queuedBytesChanged(size);
+        metrics.frameCoalesced();
+        return true;
+    }
+
+    // если прошлое уведомление об этом участнике еще ждет отправки, оба взаимно уничтожаются:
+    // вход и выход (или выход и вход) ничего не меняют для клиента
+    private boolean cancelNotice(String subject) {
+        ByteBuffer earlier = pendingNotices.remove(subject);
+        if (earlier == null || earlier.position() != 0 || !earlier.hasRemaining()
+                || views.peekFirst() == earlier) {
+            return false;
+        }
+        // пустое представление останется в очереди и будет отпущено при отправке
+        int length = earlier.remaining();
+        earlier.position(earlier.limit());
+        queuedBytes -= length;
+        metrics.queuedBytesChanged(-length);
+        metrics.noticesCollapsed(2);
+        return true;
+    }
+
+    // замер скорости после записи written байт
+    private void drained(long written) {
+        long now = System.nanoTime();
+        long elapsed = Math.max(now - waitingSince, 1_000);
+        double rate = written * 1e9 / elapsed;
+        drainRate = drainRate == 0 ? rate : drainRate + DRAIN_RATE_ALPHA * (rate - drainRate);
+        waitingSince = now;
+    }
+
+    // клиент догнал: очередь пуста, склеивать больше нечего
+    private void caughtUp() {
+        if (coalescing) {
+            coalescing = false;
+            metrics.coalescingStopped();
+        }
+        coalesceFrame = null;
+        coalesceView = null;
+        pendingNotices.clear();
+    }
+
+    // ставит несколько кадров подряд под одним замком, чтобы их не разбили чужие сообщения.
+    // результат - худший из результатов по отдельным кадрам
+    public synchronized OfferResult offerAll(SharedFrame[] batch) {
+        OfferResult result = OfferResult.QUEUED;
+        for (SharedFrame frame : batch) {
+            OfferResult frameResult = offer(frame);
+            if (frameResult.compareTo(result) > 0) {
+                result = frameResult;
+            }
+        }
+        return result;
+    }
+
+    // пишем в канал сколько получится, но не больше maxBytes за вызов, чтобы один клиент
+    // с большой очередью не задерживал остальных клиентов реактора.
+    // несколько кадров уходят одной записью (writev), возвращает true если очередь опустела
+    public synchronized boolean flushTo(GatheringByteChannel channel, long maxBytes) throws IOException {
+        long budget = maxBytes;
+        while (!views.isEmpty() && budget > 0) {
+            int count = 0;
+            long gathered = 0;
+            for (ByteBuffer view : views) {
+                gather[count++] = view;
+                gathered += view.remaining();
+                if (count == MAX_GATHER || gathered >= budget) {
+                    break;
+                }
+            }
+            long written = channel.write(gather, 0, count);
+            budget -= written;
+            queuedBytes -= written;
+            if (written > 0) {
+                drained(written);
+            }
+            metrics.bytesWritten(written);
+            metrics.queuedBytesChanged(-written);
+            // после склейки в очереди бывают пустые представления, смотрим последнее непустое
+            boolean socketFull = false;
+            for (int i = count - 1; i >= 0 && !socketFull; i--) {
+                socketFull = gather[i].hasRemaining();
+            }
+            Arrays.fill(gather, 0, count, null);
+            // отпускаем целиком отправленные кадры
+            while (!views.isEmpty() && !views.peekFirst().hasRemaining()) {
+                views.pollFirst();
+                frames.pollFirst().release();
+                metrics.frameSent();
+            }
+            if (socketFull) {
+                // сокет заполнен, продолжим по OP_WRITE
+                break;
+            }
+            // иначе пишем дальше, пока не кончится очередь или лимит
+            // (остаток после лимита тоже уйдет по OP_WRITE, в следующем проходе селектора)
+        }
+        if (lagging && queuedBytes <= lowWatermark) {
+            lagging = false;
+        }
+        if (frames.isEmpty()) {
+            caughtUp();
+            return true;
+        }
+        return false;
+    }
+
+    // для блокирующего канала: отправляет первый кадр целиком, не держа замок во время записи,
+    // чтобы рассылающие потоки не ждали медленного клиента.
+    // вызывать может только один поток. возвращает false, если очередь пуста
+    public boolean writeHeadTo(WritableByteChannel channel) throws IOException {
+        ByteBuffer head;
+        SharedFrame frame;
+        synchronized (this) {
+            head = views.peekFirst();
+            if (head == null) {
+                return false;
+            }
+            // своя ссылка, чтобы clear() не вернул буфер в пул посреди записи
+            frame = frames.peekFirst().retain();
+        }
+        int length = head.remaining();
+        try {
+            while (head.hasRemaining()) {
+                metrics.bytesWritten(channel.write(head));
+            }
+        } finally {
+            frame.release();
+        }
+        synchronized (this) {
+            // после clear() кадра в очереди уже нет
+            if (views.peekFirst() == head) {
+                views.pollFirst();
+                frames.pollFirst().release();
+                metrics.frameSent();
+                queuedBytes -= length;
+                metrics.queuedBytesChanged(-length);
+                if (length > 0) {
+                    drained(length);
+                }
+                if (lagging && queuedBytes <= lowWatermark) {
+                    lagging = false;
+                }
+                if (frames.isEmpty()) {
+                    caughtUp();
+                }
+            }
+        }
+        return true;
+    }
+
+    // отпускает все кадры, вызывается при закрытии соединения
+    public synchronized void clear() {
+        closed = true;
+        SharedFrame frame;
+        while ((frame = frames.pollFirst()) != null) {
+            frame.release();
+        }
+        views.clear();
+        metrics.queuedBytesChanged(-queuedBytes);
+        queuedBytes = 0;
+        caughtUp();
+    }
+
+    public synchronized boolean isEmpty() {
+        return frames.isEmpty();
+    }
+
+    public synchronized long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    public synchronized long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    // байт в секунду, 0 пока клиенту ничего не отправлялось
+    public synchronized double getDrainRate() {
+        return drainRate;
+    }
+
+    public synchronized boolean isCoalescing() {
+        return coalescing;
+    }
+}
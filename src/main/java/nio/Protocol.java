@@ -0,0 +1,180 @@
+package nio;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+// описание протокола, общее для сервера и клиента.
+//
+// текстовый протокол: строки TYPE:payload\n, например MESSAGE:привет
+//
+// бинарный протокол: кадры [код 1 байт][длина тела varint][тело].
+// строки в теле - UTF-8, комната в JOIN и в списке комнат задается номером, а не названием.
+// клиент включает его, отправив первой командой текстовую строку PROTO:BINARY
+// (до NAME), сервер отвечает той же строкой текстом, и дальше обе стороны
+// обмениваются только бинарными кадрами
+public final class Protocol {
+    public static final String BINARY_HANDSHAKE = "PROTO:BINARY";
+
+    // команды клиента (в текстовом протоколе - по названию типа)
+    public static final byte UNKNOWN = 0;
+    public static final byte NAME = 1; // тело: имя
+    public static final byte CREATE = 2; // тело: название комнаты
+    public static final byte JOIN = 3; // тело: varint номер комнаты (в тексте - название)
+    public static final byte LEAVE = 4; // без тела
+    public static final byte MESSAGE = 5; // тело: текст сообщения
+    public static final byte LIST = 6; // без тела
+    public static final byte PROTO = 7; // только в тексте, выбор протокола
+    public static final byte HISTORY = 8; // тело: номер сообщения, до которого нужна страница истории (пусто - последние)
+    public static final byte ROOMS = 9; // тело: SUBSCRIBE или UNSUBSCRIBE - подписка на изменения списка комнат
+    public static final byte PONG = 10; // без тела, ответ на PING сервера
+
+    // максимальная длина varint для int
+    public static final int MAX_VARINT_SIZE = 5;
+
+    // сообщения сервера
+    public enum MessageType {
+        SYSTEM("SYSTEM:", (byte) 0x11), // тело: текст
+        MESSAGE("MESSAGE:", (byte) 0x12), // тело: "[имя] текст"
+        // тело в бинарном виде: записи [varint номер][varint длина названия][название][varint участников]
+        LIST("LIST:", (byte) 0x13),
+        HISTORY("HISTORY:", (byte) 0x14), // тело: "номер [имя] текст", сообщение из истории комнаты
+        ROOMS("ROOMS:", (byte) 0x15), // изменения списка комнат для подписчиков, см. RoomListPublisher
+        // без тела: клиент долго молчит, сервер проверяет, что он на связи. ответ - команда PONG
+        PING("PING:", (byte) 0x16);
+
+        private final String textPrefix;
+        private final byte opcode;
+
+        MessageType(String textPrefix, byte opcode) {
+            this.textPrefix = textPrefix;
+            this.opcode = opcode;
+        }
+
+        public String getTextPrefix() {
+            return textPrefix;
+        }
+
+        public byte getOpcode() {
+            return opcode;
+        }
+
+        public static MessageType fromOpcode(int opcode) {
+            for (MessageType type : values()) {
+                if (type.opcode == opcode) {
+                    return type;
+                }
+            }
+            return null;
+        }
+    }
+
+    private Protocol() {
+    }
+
+    // код команды по ее названию в текстовом протоколе
+    public static byte commandOpcode(String type) {
+        switch (type) {
+            case "NAME":
+                return NAME;
+            case "CREATE":
+                return CREATE;
+            case "JOIN":
+                return JOIN;
+            case "LEAVE":
+                return LEAVE;
+            case "MESSAGE":
+                return MESSAGE;
+            case "LIST":
+                return LIST;
+            case "PROTO":
+                return PROTO;
+            case "HISTORY":
+                return HISTORY;
+            case "ROOMS":
+                return ROOMS;
+            case "PONG":
+                return PONG;
+            default:
+                return UNKNOWN;
+        }
+    }
+
+    public static String commandName(byte opcode) {
+        switch (opcode) {
+            case NAME:
+                return "NAME";
+            case CREATE:
+                return "CREATE";
+            case JOIN:
+                return "JOIN";
+            case LEAVE:
+                return "LEAVE";
+            case MESSAGE:
+                return "MESSAGE";
+            case LIST:
+                return "LIST";
+            case PROTO:
+                return "PROTO";
+            case HISTORY:
+                return "HISTORY";
+            case ROOMS:
+                return "ROOMS";
+            case PONG:
+                return "PONG";
+            default:
+                throw new IllegalArgumentException("неизвестная команда: " + opcode);
+        }
+    }
+
+    public static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    public static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    // читает varint по абсолютному индексу не дальше end.
+    // возвращает -1, если байтов не хватает; размер прочитанного - varintSize(результат).
+    // значения больше Integer.MAX_VALUE и лишние нулевые байты (80 00 вместо 00) - ошибка протокола:
+    // иначе отрицательное число спутали бы с нехваткой байтов, а размер - с varintSize
+    public static int getVarint(ByteBuffer buffer, int index, int end) {
+        int value = 0;
+        for (int i = 0; i < MAX_VARINT_SIZE; i++) {
+            if (index + i >= end) {
+                return -1;
+            }
+            int b = buffer.get(index + i) & 0xFF;
+            if (i == MAX_VARINT_SIZE - 1 && b > 0x07) {
+                // в последнем байте остаются только биты 28-30
+                throw new IllegalArgumentException("varint больше Integer.MAX_VALUE");
+            }
+            if (i > 0 && b == 0) {
+                throw new IllegalArgumentException("varint с лишними нулевыми байтами");
+            }
+            value |= (b & 0x7F) << (7 * i);
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("слишком длинный varint");
+    }
+
+    public static void writeVarint(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+}
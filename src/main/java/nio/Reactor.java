@@ -0,0 +1,210 @@
+package nio;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// рабочий поток со своим селектором.
+// обслуживает часть клиентов: читает их команды и отправляет им сообщения.
+// другие потоки не трогают его каналы напрямую, а оставляют заявки в очередях
+// и будят селектор
+public class Reactor implements Runnable, ConnectionOwner {
+    private final Selector selector;
+    private final Thread thread;
+    // каналы, которые акцептор передал этому реактору
+    private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+    // соединения, в очередь которых положили сообщения из других потоков
+    private final Queue<Connection> flushRequests = new ConcurrentLinkedQueue<>();
+    // то же из самого реактора: рассылка по комнате во время разбора команд.
+    // отправляем их один раз в конце прохода, все накопленное за проход одной записью,
+    // а не системным вызовом на каждое сообщение каждому получателю
+    private final Queue<Connection> localFlushRequests = new ArrayDeque<>();
+    // соединения, которые нужно закрыть после текущего прохода селектора
+    // (нельзя закрывать прямо во время рассылки по комнате)
+    private final Queue<Connection> disconnectRequests = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final ServerMetrics metrics = ServerMetrics.shared();
+    // сроки соединений этого реактора, select ждет не дольше ближайшего
+    private final TimingWheel timeouts = new TimingWheel(ServerConfig.TIMER_TICK_MILLIS, System.nanoTime());
+    // когда начался разбор событий текущего прохода, 0 - еще не начался
+    private long iterationStart = 0;
+
+    public Reactor(int index) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, "reactor-" + index);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    // вызывается из потока акцептора
+    public void register(SocketChannel socketChannel) {
+        connectionCount.incrementAndGet();
+        newChannels.add(socketChannel);
+        selector.wakeup();
+    }
+
+    @Override
+    public void requestFlush(Connection connection) {
+        if (Thread.currentThread() == thread) {
+            localFlushRequests.add(connection);
+        } else {
+            flushRequests.add(connection);
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void requestDisconnect(Connection connection) {
+        disconnectRequests.add(connection);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                // метод select обработает каждый канал,
+                // где произошло какое-то событие.
+                // если отправка осталась с прошлого прохода (например, прощание ушедшего клиента), не ждем
+                if (localFlushRequests.isEmpty()) {
+                    selector.select(this::handleKey, timeouts.millisToNextDeadline(System.nanoTime()));
+                } else {
+                    selector.selectNow(this::handleKey);
+                }
+                if (iterationStart == 0) {
+                    // селектор разбудили без событий на каналах
+                    iterationStart = System.nanoTime();
+                }
+                registerNewChannels();
+                timeouts.advance(System.nanoTime(), this::checkTimeouts);
+                processFlushRequests();
+                processDisconnectRequests();
+                metrics.selectLoopIteration(System.nanoTime() - iterationStart);
+                iterationStart = 0;
+            } catch (IOException e) {
+                Log.error("ошибка при работе селектора: ", e.getMessage());
+            }
+        }
+    }
+
+    private void handleKey(SelectionKey selectionKey) {
+        if (iterationStart == 0) {
+            iterationStart = System.nanoTime();
+        }
+        Connection connection = (Connection) selectionKey.attachment();
+
+        // канал снова готов к записи - дописываем очередь
+        if (selectionKey.isValid() && selectionKey.isWritable()) {
+            flush(connection);
+        }
+
+        // если на клиентском канале есть данные для чтения
+        if (selectionKey.isValid() && selectionKey.isReadable()) {
+            processMessage(connection);
+        }
+    }
+
+    private void registerNewChannels() {
+        SocketChannel socketChannel;
+        while ((socketChannel = newChannels.poll()) != null) {
+            // к ключу прикрепляем состояние соединения (буфер чтения и очередь отправки)
+            Connection connection = new Connection(socketChannel, this);
+            try {
+                // регистрируем канал в селекторе,
+                // указываем, что клиентский канал должен читать данные от клиента
+                connection.setKey(socketChannel.register(selector, SelectionKey.OP_READ, connection));
+
+                ChatServerNio.onConnected(connection);
+                checkTimeouts(connection);
+            } catch (ClosedChannelException e) {
+                connection.markClosed();
+                ChatServerNio.disconnectClient(connection);
+                connection.releaseBuffers();
+                connectionCount.decrementAndGet();
+                Log.info("клиент отключился до регистрации: ", e.getMessage());
+            }
+        }
+    }
+
+    private void processFlushRequests() {
+        Connection connection;
+        while ((connection = localFlushRequests.poll()) != null) {
+            flush(connection);
+        }
+        while ((connection = flushRequests.poll()) != null) {
+            flush(connection);
+        }
+    }
+
+    private void processDisconnectRequests() {
+        Connection connection;
+        while ((connection = disconnectRequests.poll()) != null) {
+            timeouts.cancel(connection);
+            if (connection.markClosed()) {
+                connectionCount.decrementAndGet();
+                ChatServerNio.disconnectClient(connection);
+                connection.releaseBuffers();
+            }
+        }
+    }
+
+    private void processMessage(Connection connection) {
+        FrameDecoder decoder = connection.getDecoder();
+        try {
+            // читаем в буфер соединения, там может остаться хвост прошлой команды
+            int readBytes = connection.getChannel().read(decoder.getBuffer());
+            if (readBytes == -1) {
+                connection.disconnect(null);
+                return;
+            }
+            metrics.bytesRead(readBytes);
+            // в колесе ничего не меняем: срок сработает как раньше и перепроверит время чтения
+            connection.touch(iterationStart);
+            ChatServerNio.processCommands(connection);
+        } catch (IOException e) {
+            connection.disconnect("ошибка при обработке сообщения: ", e.getMessage());
+        } catch (IllegalArgumentException e) {
+            // испорченный бинарный кадр, дальше поток не разобрать
+            connection.disconnect("ошибка протокола: ", e.getMessage());
+        }
+    }
+
+    private void checkTimeouts(Connection connection) {
+        long deadline = ChatServerNio.checkTimeouts(connection, System.nanoTime());
+        if (deadline != ChatServerNio.NO_DEADLINE) {
+            timeouts.schedule(connection, deadline);
+        }
+    }
+
+    private void flush(Connection connection) {
+        connection.clearFlushPending();
+        SelectionKey key = connection.getKey();
+        if (!key.isValid()) {
+            return;
+        }
+        try {
+            if (connection.getOutboundQueue().flushTo(connection.getChannel(), ServerConfig.FLUSH_MAX_BYTES)) {
+                // все отправили - OP_WRITE больше не нужен
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            } else {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        } catch (IOException e) {
+            connection.disconnect("ошибка при отправке сообщения: ", e.getMessage());
+        }
+    }
+}
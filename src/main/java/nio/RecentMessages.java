@@ -0,0 +1,205 @@
+package nio;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// последние сообщения комнаты в памяти - кольцевой буфер фиксированной емкости.
+// каждое сообщение кодируется в кадр HISTORY один раз на протокол (при первом входе,
+// которому оно понадобилось), дальше новые участники получают те же кадры без
+// кодирования и без чтения журнала с диска.
+// память ограничена и на комнату, и на весь сервер (Budget): при превышении общего
+// бюджета буферы комнат, где дольше всего ничего не происходило, освобождаются
+public class RecentMessages {
+    // примерные накладные расходы на одну запись, помимо сообщения и кадров
+    private static final int ENTRY_OVERHEAD = 64;
+
+    // общий бюджет памяти всех комнат
+    public static final class Budget {
+        private final long limit;
+        private final AtomicLong used = new AtomicLong();
+        private final AtomicBoolean evicting = new AtomicBoolean();
+
+        public Budget(long limit) {
+            this.limit = limit;
+        }
+
+        public long getUsed() {
+            return used.get();
+        }
+
+        public boolean isExceeded() {
+            return used.get() > limit;
+        }
+
+        // освобождает буферы самых давно не используемых комнат, пока не уложимся в бюджет.
+        // если чистку уже делает другой поток, сразу выходит
+        public void evictIdle(Iterable<Room> rooms) {
+            if (!evicting.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                List<RecentMessages> candidates = new ArrayList<>();
+                for (Room room : rooms) {
+                    RecentMessages recent = room.getRecentMessages();
+                    if (recent != null && recent.getBytes() > 0) {
+                        // время может измениться во время сортировки, сортируем по снимку
+                        recent.evictionKey = recent.lastUsed;
+                        candidates.add(recent);
+                    }
+                }
+                candidates.sort((a, b) -> Long.compare(a.evictionKey, b.evictionKey));
+                for (RecentMessages recent : candidates) {
+                    if (!isExceeded()) {
+                        break;
+                    }
+                    recent.clear();
+                }
+            } finally {
+                evicting.set(false);
+            }
+        }
+    }
+
+    private final Budget budget;
+    private final int capacity;
+    private final long maxBytes;
+    // кольцо: head - самая старая запись
+    private final long[] seqs;
+    // сообщения в UTF-8, как они пришли от клиента
+    private final byte[][] messages;
+    private final SharedFrame[] textFrames;
+    private final SharedFrame[] binaryFrames;
+    private final int[] entryBytes;
+    private int head = 0;
+    private int count = 0;
+    private long nextSeq = 0;
+    private long bytes = 0;
+    // когда в комнату последний раз писали или входили, для выбора комнат на очистку
+    private volatile long lastUsed = System.nanoTime();
+    // lastUsed на момент очистки, меняет только поток, который чистит
+    private long evictionKey;
+
+    // nextSeq - номер следующего сообщения комнаты (после восстановления истории не 0)
+    public RecentMessages(int capacity, long maxBytes, Budget budget, long nextSeq) {
+        this.budget = budget;
+        this.nextSeq = nextSeq;
+        this.capacity = capacity;
+        this.maxBytes = maxBytes;
+        this.seqs = new long[capacity];
+        this.messages = new byte[capacity][];
+        this.textFrames = new SharedFrame[capacity];
+        this.binaryFrames = new SharedFrame[capacity];
+        this.entryBytes = new int[capacity];
+    }
+
+    // номер, который получит следующее сообщение (если его не задают снаружи)
+    public synchronized long getNextSeq() {
+        return nextSeq;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    // запоминает сообщение с номером seq (-1 - следующий по порядку), вытесняя самое старое
+    public synchronized void add(long seq, byte[] message) {
+        if (seq < 0) {
+            seq = nextSeq;
+        }
+        if (count == capacity) {
+            removeOldest();
+        }
+        int index = (head + count) % capacity;
+        seqs[index] = seq;
+        messages[index] = message;
+        count++;
+        nextSeq = seq + 1;
+        addBytes(index, ENTRY_OVERHEAD + message.length);
+        trim();
+        lastUsed = System.nanoTime();
+    }
+
+    // кадры HISTORY с номерами от from до to (не включая), каждому вызывающему - своя ссылка.
+    // номера в кольце идут подряд, поэтому результат - это сообщения [to - длина, to):
+    // если начало диапазона уже вытеснено, его нужно дочитать из журнала
+    public synchronized SharedFrame[] backlog(long from, long to, boolean binary) {
+        lastUsed = System.nanoTime();
+        int start = 0;
+        while (start < count && seqs[(head + start) % capacity] < from) {
+            start++;
+        }
+        int end = start;
+        while (end < count && seqs[(head + end) % capacity] < to) {
+            end++;
+        }
+        SharedFrame[] cache = binary ? binaryFrames : textFrames;
+        SharedFrame[] frames = new SharedFrame[end - start];
+        for (int i = start; i < end; i++) {
+            int index = (head + i) % capacity;
+            if (cache[index] == null) {
+                byte[] head = (seqs[index] + " ").getBytes(StandardCharsets.US_ASCII);
+                cache[index] = SharedFrame.encode(Protocol.MessageType.HISTORY, head,
+                        ByteBuffer.wrap(messages[index]), 0, messages[index].length, binary);
+                addBytes(index, cache[index].capacity());
+            }
+            frames[i - start] = cache[index].retain();
+        }
+        // кадры уже у вызывающего, вытеснение их не освободит
+        trim();
+        return frames;
+    }
+
+    // те же сообщения, что в backlog, но текстом: для участников на других узлах кластера
+    public synchronized List<RoomHistory.Entry> entries(long from, long to) {
+        lastUsed = System.nanoTime();
+        List<RoomHistory.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int index = (head + i) % capacity;
+            if (seqs[index] >= from && seqs[index] < to) {
+                entries.add(new RoomHistory.Entry(seqs[index], new String(messages[index], StandardCharsets.UTF_8)));
+            }
+        }
+        return entries;
+    }
+
+    // освобождает все кадры, номера продолжаются
+    public synchronized void clear() {
+        while (count > 0) {
+            removeOldest();
+        }
+        head = 0;
+    }
+
+    // вытесняем старые записи, пока комната не уложится в свой лимит
+    private void trim() {
+        while (bytes > maxBytes && count > 1) {
+            removeOldest();
+        }
+    }
+
+    private void removeOldest() {
+        int index = head;
+        if (textFrames[index] != null) {
+            textFrames[index].release();
+            textFrames[index] = null;
+        }
+        if (binaryFrames[index] != null) {
+            binaryFrames[index].release();
+            binaryFrames[index] = null;
+        }
+        messages[index] = null;
+        addBytes(index, -entryBytes[index]);
+        head = (head + 1) % capacity;
+        count--;
+    }
+
+    private void addBytes(int index, int delta) {
+        entryBytes[index] += delta;
+        bytes += delta;
+        budget.used.addAndGet(delta);
+    }
+}
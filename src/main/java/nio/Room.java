@@ -0,0 +1,233 @@
+package nio;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// комната чата. участники - массив, который меняют и обходят под замком порядка комнаты (order).
+// свое место в массиве участник хранит сам (Connection.roomSlot), поэтому выход стоит O(1):
+// на освободившееся место переезжает последний участник. вход - O(1) в среднем (массив растет вдвое).
+// комната видна в JMX со своим числом сообщений (RoomMBean).
+// в кластере (см. Cluster) members - только участники на этом узле
+public class Room implements RoomMBean {
+    private static final int INITIAL_CAPACITY = 4;
+
+    // номер комнаты для бинарного протокола
+    private final int id;
+    private final String name;
+    // участники - первые memberCount ячеек, только под замком order
+    private Connection[] members = new Connection[INITIAL_CAPACITY];
+    // пишется под замком, читать можно без него (JMX, кластер)
+    private volatile int memberCount;
+    // сохраненные сообщения, null если история выключена
+    private volatile RoomHistory history;
+    // последние сообщения в памяти, null если их некуда показывать (chat.history.replay=0)
+    private volatile RecentMessages recentMessages;
+    private final LongAdder messageCount = new LongAdder();
+    // считает поток метрик раз в интервал
+    private volatile double messagesPerSecond;
+    private long lastMessageCount;
+    // комнатой владеет этот узел (без кластера - всегда)
+    private volatile boolean owned = true;
+    // у владельца: сколько участников на других узлах кластера, узел - число
+    // (заполняется и до того, как комната стала нашей, если ATTACH пришел раньше)
+    private final ConcurrentMap<String, Integer> remoteMembers = new ConcurrentHashMap<>();
+    // не у владельца: участников во всем кластере по последнему сообщению владельца
+    private volatile int clusterMemberCount = 0;
+    // у владельца - точка упорядочивания комнаты: под этим замком сообщение получает номер
+    // в журнале и раздается участникам, под ним же в комнату входят. поэтому сообщения,
+    // отправленные с разных реакторов, все видят в одном порядке - порядке журнала.
+    // на любом узле под ним же меняют и обходят массив участников
+    private final Object order = new Object();
+
+    public Room(int id, String name) {
+        this.id = id;
+        this.name = name;
+    }
+
+    @Override
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    public RoomHistory getHistory() {
+        return history;
+    }
+
+    public void setHistory(RoomHistory history) {
+        this.history = history;
+    }
+
+    public RecentMessages getRecentMessages() {
+        return recentMessages;
+    }
+
+    public void setRecentMessages(RecentMessages recentMessages) {
+        this.recentMessages = recentMessages;
+    }
+
+    // участник с номером index < getLocalMemberCount(), только под замком getOrder()
+    Connection getMember(int index) {
+        return members[index];
+    }
+
+    Object getOrder() {
+        return order;
+    }
+
+    // участников во всем кластере (без кластера - на этом сервере)
+    @Override
+    public int getMemberCount() {
+        if (!owned) {
+            return clusterMemberCount;
+        }
+        int count = memberCount;
+        for (int remote : remoteMembers.values()) {
+            count += remote;
+        }
+        return count;
+    }
+
+    public int getLocalMemberCount() {
+        return memberCount;
+    }
+
+    public boolean isOwned() {
+        return owned;
+    }
+
+    void setOwned(boolean owned) {
+        this.owned = owned;
+    }
+
+    void setClusterMemberCount(int count) {
+        clusterMemberCount = count;
+    }
+
+    // у владельца: участник пришел или ушел на другом узле
+    void remoteJoined(String node) {
+        remoteMembers.merge(node, 1, Integer::sum);
+    }
+
+    void remoteLeft(String node) {
+        // ноль удаляет запись
+        remoteMembers.computeIfPresent(node, (key, count) -> count > 1 ? count - 1 : null);
+    }
+
+    void setRemoteMembers(String node, int count) {
+        if (count > 0) {
+            remoteMembers.put(node, count);
+        } else {
+            remoteMembers.remove(node);
+        }
+    }
+
+    void addRemoteMembersIfAbsent(String node, int count) {
+        if (count > 0) {
+            remoteMembers.putIfAbsent(node, count);
+        }
+    }
+
+    // копия: узел - число участников
+    Map<String, Integer> getRemoteMembers() {
+        return new HashMap<>(remoteMembers);
+    }
+
+    // true, если на узле были участники
+    boolean removeRemoteNode(String node) {
+        return remoteMembers.remove(node) != null;
+    }
+
+    void clearRemoteMembers() {
+        remoteMembers.clear();
+    }
+
+    boolean hasRemoteMembers() {
+        return !remoteMembers.isEmpty();
+    }
+
+    // узлы, где есть участники комнаты
+    List<String> getRemoteNodes() {
+        return new ArrayList<>(remoteMembers.keySet());
+    }
+
+    public void messageSent() {
+        messageCount.increment();
+    }
+
+    @Override
+    public long getMessageCount() {
+        return messageCount.sum();
+    }
+
+    @Override
+    public double getMessagesPerSecond() {
+        return messagesPerSecond;
+    }
+
+    // вызывается потоком метрик в конце интервала длиной seconds
+    void updateMessageRate(double seconds) {
+        long count = messageCount.sum();
+        messagesPerSecond = (count - lastMessageCount) / seconds;
+        lastMessageCount = count;
+    }
+
+    public void add(Connection connection) {
+        synchronized (order) {
+            if (isAt(connection, connection.roomSlot)) {
+                return;
+            }
+            int count = memberCount;
+            if (count == members.length) {
+                members = Arrays.copyOf(members, count * 2);
+            }
+            members[count] = connection;
+            connection.roomSlot = count;
+            memberCount = count + 1;
+        }
+    }
+
+    public void remove(Connection connection) {
+        synchronized (order) {
+            int index = connection.roomSlot;
+            if (!isAt(connection, index)) {
+                // пока вход в другую комнату откатывается (RoomRegistry.admit), соединение
+                // недолго числится в двух комнатах и его место здесь могло затереться
+                index = indexOf(connection);
+                if (index < 0) {
+                    return;
+                }
+            }
+            int last = memberCount - 1;
+            Connection moved = members[last];
+            members[index] = moved;
+            moved.roomSlot = index;
+            members[last] = null;
+            connection.roomSlot = -1;
+            memberCount = last;
+        }
+    }
+
+    private boolean isAt(Connection connection, int slot) {
+        return slot >= 0 && slot < memberCount && members[slot] == connection;
+    }
+
+    private int indexOf(Connection connection) {
+        for (int i = 0; i < memberCount; i++) {
+            if (members[i] == connection) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,216 @@
+package nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// история сообщений одной комнаты на диске.
+// журнал только дописывается и разбит на сегменты - файлы фиксированного размера,
+// отображенные в память (mmap), поэтому сообщения лежат вне кучи, а запись - это копирование байтов.
+// у каждого сообщения свой номер, номера идут подряд с 0.
+// в памяти хранятся только смещения записей в сегментах, сами сообщения читаются с диска по запросу.
+// когда сегментов больше лимита, самый старый файл удаляется.
+//
+// запись в сегменте: [int длина][сообщение UTF-8], длина 0 - конец записанной части
+// (файл создается заполненным нулями, а длина пишется последней, так что
+// недописанная при падении запись при восстановлении отбрасывается)
+public class RoomHistory {
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int RECORD_HEADER = 4;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    // от старых к новым
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    // номер следующего сообщения
+    private long nextSeq = 0;
+
+    private RoomHistory(Path directory, int segmentSize, int maxSegments) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+    }
+
+    // открывает каталог комнаты и восстанавливает индекс по уже записанным сегментам
+    static RoomHistory open(Path directory, int segmentSize, int maxSegments) throws IOException {
+        RoomHistory history = new RoomHistory(directory, segmentSize, maxSegments);
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        // имя файла - номер первого сообщения с ведущими нулями, так что сортировка по имени
+        // совпадает с порядком сегментов
+        files.sort(null);
+        for (Path file : files) {
+            String fileName = file.getFileName().toString();
+            long baseSeq = Long.parseLong(fileName.substring(0, fileName.length() - SEGMENT_SUFFIX.length()));
+            Segment segment = Segment.recover(file, baseSeq);
+            history.segments.addLast(segment);
+            history.nextSeq = baseSeq + segment.count;
+        }
+        return history;
+    }
+
+    // дописывает сообщение из двух частей в UTF-8 - head и body[start, start + length),
+    // возвращает его номер. сообщение больше сегмента не сохраняется (-1)
+    public synchronized long append(byte[] head, ByteBuffer body, int start, int length) throws IOException {
+        int recordLength = RECORD_HEADER + head.length + length;
+        if (recordLength > segmentSize) {
+            return -1;
+        }
+        Segment segment = segments.peekLast();
+        if (segment == null || segment.remaining() < recordLength) {
+            segment = roll();
+        }
+        segment.append(head, body, start, length);
+        return nextSeq++;
+    }
+
+    // номер самого старого сообщения, которое еще хранится
+    public synchronized long getFirstSeq() {
+        Segment first = segments.peekFirst();
+        return first == null ? nextSeq : first.baseSeq;
+    }
+
+    public synchronized long getNextSeq() {
+        return nextSeq;
+    }
+
+    // сообщения с номерами от from (включительно) до to (не включая),
+    // то, что уже удалено или еще не записано, пропускается
+    public synchronized List<Entry> read(long from, long to) {
+        List<Entry> entries = new ArrayList<>();
+        from = Math.max(from, getFirstSeq());
+        to = Math.min(to, nextSeq);
+        for (Segment segment : segments) {
+            long segmentEnd = segment.baseSeq + segment.count;
+            for (long seq = Math.max(from, segment.baseSeq); seq < Math.min(to, segmentEnd); seq++) {
+                entries.add(new Entry(seq, segment.read((int) (seq - segment.baseSeq))));
+            }
+        }
+        return entries;
+    }
+
+    // новый сегмент, старые сверх лимита удаляются
+    private Segment roll() throws IOException {
+        Segment previous = segments.peekLast();
+        if (previous != null) {
+            // сегмент больше не меняется - сбрасываем его на диск
+            previous.buffer.force();
+        }
+        Path file = directory.resolve(String.format("%020d", nextSeq) + SEGMENT_SUFFIX);
+        Segment segment = Segment.create(file, nextSeq, segmentSize);
+        segments.addLast(segment);
+        while (segments.size() > maxSegments) {
+            // отображение освободит сборщик мусора, а файл можно удалить сразу
+            Files.deleteIfExists(segments.pollFirst().file);
+        }
+        return segment;
+    }
+
+    // одно сообщение истории
+    public static final class Entry {
+        private final long seq;
+        private final String message;
+
+        Entry(long seq, String message) {
+            this.seq = seq;
+            this.message = message;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    // один файл журнала
+    private static final class Segment {
+        private final Path file;
+        // номер первого сообщения в сегменте
+        private final long baseSeq;
+        private final MappedByteBuffer buffer;
+        // смещения записей в файле
+        private int[] offsets = new int[64];
+        private int count = 0;
+        private int writePosition = 0;
+
+        private Segment(Path file, long baseSeq, MappedByteBuffer buffer) {
+            this.file = file;
+            this.baseSeq = baseSeq;
+            this.buffer = buffer;
+        }
+
+        static Segment create(Path file, long baseSeq, int size) throws IOException {
+            return new Segment(file, baseSeq, map(file, size));
+        }
+
+        // находит записанные сообщения по длинам записей
+        static Segment recover(Path file, long baseSeq) throws IOException {
+            Segment segment = new Segment(file, baseSeq, map(file, (int) Files.size(file)));
+            int capacity = segment.buffer.capacity();
+            int position = 0;
+            while (position + RECORD_HEADER <= capacity) {
+                int length = segment.buffer.getInt(position);
+                if (length <= 0 || position + RECORD_HEADER + length > capacity) {
+                    break;
+                }
+                segment.addOffset(position);
+                position += RECORD_HEADER + length;
+            }
+            segment.writePosition = position;
+            return segment;
+        }
+
+        private static MappedByteBuffer map(Path file, int size) throws IOException {
+            // отображение остается действительным и после закрытия канала
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+
+        int remaining() {
+            return buffer.capacity() - writePosition;
+        }
+
+        void append(byte[] head, ByteBuffer body, int start, int length) {
+            buffer.put(writePosition + RECORD_HEADER, head);
+            buffer.put(writePosition + RECORD_HEADER + head.length, body, start, length);
+            // длина последней: запись видна, только когда она целиком на месте
+            buffer.putInt(writePosition, head.length + length);
+            addOffset(writePosition);
+            writePosition += RECORD_HEADER + head.length + length;
+        }
+
+        String read(int index) {
+            int offset = offsets[index];
+            byte[] bytes = new byte[buffer.getInt(offset)];
+            buffer.get(offset + RECORD_HEADER, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private void addOffset(int offset) {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            offsets[count++] = offset;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package nio;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// рассылает подписчикам изменения списка комнат вместо полного LIST.
+// изменения копятся interval миллисекунд: сколько бы раз за это время ни менялась комната,
+// подписчики получат одну запись с ее последним состоянием, а все комнаты - одним сообщением ROOMS.
+//
+// тело ROOMS - в том же виде, что и LIST, только новые и изменившиеся комнаты
+// (комнаты сервер не удаляет): в тексте название(участников);
+// в бинарном виде записи [varint номер][varint длина названия][название][varint участников]
+public class RoomListPublisher {
+    private final long intervalMillis;
+    private final Set<Connection> subscribers = ConcurrentHashMap.newKeySet();
+    // комнаты, изменившиеся с прошлой рассылки
+    private final Set<Room> dirtyRooms = ConcurrentHashMap.newKeySet();
+    // рассылка уже запланирована
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "room-list");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public RoomListPublisher(long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+    }
+
+    public void subscribe(Connection connection) {
+        subscribers.add(connection);
+    }
+
+    public void unsubscribe(Connection connection) {
+        subscribers.remove(connection);
+    }
+
+    public boolean isSubscribed(Connection connection) {
+        return subscribers.contains(connection);
+    }
+
+    // комната создана или у нее поменялось число участников
+    public void roomChanged(Room room) {
+        if (subscribers.isEmpty()) {
+            // новые подписчики все равно начнут с полного списка
+            return;
+        }
+        dirtyRooms.add(room);
+        if (scheduled.compareAndSet(false, true)) {
+            scheduler.schedule(this::publish, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void publish() {
+        // изменения после этой точки попадут в следующую рассылку
+        scheduled.set(false);
+        List<Room> rooms = new ArrayList<>(dirtyRooms.size());
+        for (Room room : dirtyRooms) {
+            dirtyRooms.remove(room);
+            rooms.add(room);
+        }
+        if (rooms.isEmpty()) {
+            return;
+        }
+        // снимок состояния, чтобы текстовое и бинарное сообщения совпадали
+        int[] counts = new int[rooms.size()];
+        for (int i = 0; i < rooms.size(); i++) {
+            counts[i] = rooms.get(i).getMemberCount();
+        }
+
+        SharedFrame textFrame = null;
+        SharedFrame binaryFrame = null;
+        for (Connection subscriber : subscribers) {
+            if (!subscriber.getChannel().isOpen()) {
+                continue;
+            }
+            if (subscriber.isBinary()) {
+                if (binaryFrame == null) {
+                    binaryFrame = encodeBinary(rooms, counts);
+                }
+                subscriber.send(binaryFrame);
+            } else {
+                if (textFrame == null) {
+                    textFrame = SharedFrame.encode(Protocol.MessageType.ROOMS, formatText(rooms, counts), false);
+                }
+                subscriber.send(textFrame);
+            }
+        }
+        if (textFrame != null) {
+            textFrame.release();
+        }
+        if (binaryFrame != null) {
+            binaryFrame.release();
+        }
+    }
+
+    private static String formatText(List<Room> rooms, int[] counts) {
+        StringBuilder delta = new StringBuilder();
+        for (int i = 0; i < rooms.size(); i++) {
+            delta.append(rooms.get(i).getName()).append('(').append(counts[i]).append(");");
+        }
+        return delta.toString();
+    }
+
+    private static SharedFrame encodeBinary(List<Room> rooms, int[] counts) {
+        int[] nameLengths = new int[rooms.size()];
+        int bodyLength = 0;
+        for (int i = 0; i < rooms.size(); i++) {
+            Room room = rooms.get(i);
+            nameLengths[i] = SharedFrame.utf8Length(room.getName());
+            bodyLength += Protocol.varintSize(room.getId()) + Protocol.varintSize(nameLengths[i])
+                    + nameLengths[i] + Protocol.varintSize(counts[i]);
+        }
+
+        SharedFrame frame = SharedFrame.allocate(1 + Protocol.varintSize(bodyLength) + bodyLength);
+        ByteBuffer buffer = frame.buffer();
+        buffer.put(Protocol.MessageType.ROOMS.getOpcode());
+        Protocol.putVarint(buffer, bodyLength);
+        for (int i = 0; i < rooms.size(); i++) {
+            Protocol.putVarint(buffer, rooms.get(i).getId());
+            Protocol.putVarint(buffer, nameLengths[i]);
+            SharedFrame.putUtf8(buffer, rooms.get(i).getName());
+            Protocol.putVarint(buffer, counts[i]);
+        }
+        return frame.complete();
+    }
+}
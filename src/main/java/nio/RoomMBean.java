@@ -0,0 +1,16 @@
+package nio;
+
+// комната в JMX: nio -> Room -> название
+public interface RoomMBean {
+    int getId();
+
+    String getName();
+
+    int getMemberCount();
+
+    // сообщений с запуска сервера
+    long getMessageCount();
+
+    // за последний интервал chat.metrics.interval
+    double getMessagesPerSecond();
+}
@@ -0,0 +1,120 @@
+package nio;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// все клиенты и комнаты сервера.
+// построен на конкурентных структурах без общего замка:
+// реакторы меняют и читают его одновременно.
+// команды одного клиента выполняет только его реактор,
+// поэтому гонки возможны лишь между разными клиентами.
+// имя клиента и его комната хранятся в самом Connection, здесь только счетчик клиентов
+public class RoomRegistry {
+    private final AtomicInteger clientCount = new AtomicInteger();
+    // название - комната
+    private final ConcurrentMap<String, Room> rooms = new ConcurrentHashMap<>();
+    // номер - комната
+    private final ConcurrentMap<Integer, Room> roomsById = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRoomId = new AtomicInteger(1);
+
+    // false, если клиент уже зарегистрирован
+    public boolean register(Connection connection, String name) {
+        if (connection.isRegistered()) {
+            return false;
+        }
+        connection.setName(name);
+        clientCount.incrementAndGet();
+        return true;
+    }
+
+    // null, если комната с таким названием уже есть
+    public Room createRoom(String roomName) {
+        Room room = new Room(nextRoomId.getAndIncrement(), roomName);
+        if (rooms.putIfAbsent(roomName, room) != null) {
+            return null;
+        }
+        roomsById.put(room.getId(), room);
+        return room;
+    }
+
+    public Room getRoomById(int roomId) {
+        return roomsById.get(roomId);
+    }
+
+    public Room getRoom(String roomName) {
+        return rooms.get(roomName);
+    }
+
+    // переводит клиента в комнату, возвращает комнату, из которой он ушел (или null)
+    public Room join(Connection connection, Room room) {
+        Room previous = joinPending(connection, room);
+        // откат входа из потока кластера может успеть между сменой комнаты и add
+        admit(connection, room);
+        return previous;
+    }
+
+    // переводит клиента в комнату другого узла кластера, возвращает прежнюю комнату (или null).
+    // рассылку комнаты он начнет получать после admit, когда владелец пришлет последние сообщения
+    public Room joinPending(Connection connection, Room room) {
+        Room previous = connection.swapRoom(room);
+        if (previous != null && previous != room) {
+            previous.remove(connection);
+        }
+        return previous;
+    }
+
+    // добавляет в участники клиента, если он все еще в комнате room
+    public boolean admit(Connection connection, Room room) {
+        if (connection.getRoom() != room) {
+            return false;
+        }
+        room.add(connection);
+        // клиент мог выйти между проверкой и add - тогда он остался бы в рассылке чужой комнаты
+        if (connection.getRoom() != room) {
+            room.remove(connection);
+            return false;
+        }
+        return true;
+    }
+
+    // убирает клиента из его комнаты, возвращает эту комнату (или null)
+    public Room leave(Connection connection) {
+        Room room = connection.swapRoom(null);
+        if (room != null) {
+            room.remove(connection);
+        }
+        return room;
+    }
+
+    // убирает клиента из комнаты, только если он все еще в ней
+    public boolean leave(Connection connection, Room room) {
+        if (!connection.leaveRoom(room)) {
+            return false;
+        }
+        room.remove(connection);
+        return true;
+    }
+
+    // при закрытии соединения, один раз. имя остается - для журнала
+    public void unregister(Connection connection) {
+        leave(connection);
+        if (connection.isRegistered()) {
+            clientCount.decrementAndGet();
+        }
+    }
+
+    // представление без копирования, обходить можно параллельно с изменениями
+    public Collection<Room> getRooms() {
+        return rooms.values();
+    }
+
+    public int getClientCount() {
+        return clientCount.get();
+    }
+
+    public int getRoomCount() {
+        return rooms.size();
+    }
+}
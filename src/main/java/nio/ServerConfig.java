@@ -0,0 +1,106 @@
+package nio;
+
+// настройки сервера, задаются через -D при запуске, например:
+// mvn compile exec:java -Pserver -Dchat.outbound.highWatermark=1048576
+public class ServerConfig {
+    // сколько байт может накопиться в очереди клиента, прежде чем он считается отставшим
+    public static final int OUTBOUND_HIGH_WATERMARK = Integer.getInteger("chat.outbound.highWatermark", 256 * 1024);
+    // до какого объема должна разгрузиться очередь, чтобы клиент снова получал сообщения
+    public static final int OUTBOUND_LOW_WATERMARK = Integer.getInteger("chat.outbound.lowWatermark", 64 * 1024);
+    // DROP - выбрасывать сообщения отставшему клиенту, DISCONNECT - отключать его
+    public static final OutboundQueue.OverflowPolicy OUTBOUND_OVERFLOW_POLICY = OutboundQueue.OverflowPolicy.valueOf(
+            System.getProperty("chat.outbound.policy", "DISCONNECT").toUpperCase());
+    // если очередь клиента при его скорости чтения будет уходить дольше этого, ему начинают
+    // склеивать сообщения (см. OutboundQueue), 0 - не склеивать
+    public static final long OUTBOUND_COALESCE_LAG_MILLIS = Long.getLong("chat.outbound.coalesceLagMillis", 200);
+
+    // сколько байт реактор отправляет одному клиенту за проход селектора,
+    // остальное - в следующих проходах, после других клиентов
+    public static final long FLUSH_MAX_BYTES = Long.getLong("chat.flush.maxBytes", 256 * 1024);
+
+    // максимальная длина одной команды от клиента в байтах, это же размер буфера чтения канала
+    // (округляется вверх до размера буфера из пула: 256, 1024, 4096, 16384 или 65536)
+    public static final int MAX_FRAME_LENGTH = Integer.getInteger("chat.maxFrameLength", 4096);
+
+    // чем обслуживаются клиенты
+    public enum Engine {
+        NIO, // реакторы с селекторами
+        VIRTUAL // виртуальные потоки на каждое соединение с блокирующими каналами
+    }
+
+    public static final Engine ENGINE = Engine.valueOf(System.getProperty("chat.engine", "NIO").toUpperCase());
+
+    // как акцептор выбирает реактор для нового клиента (только для движка nio)
+    public enum Balancing {
+        ROUND_ROBIN, // по очереди
+        LEAST_LOADED // тот, у кого меньше всего клиентов
+    }
+
+    // сколько потоков-реакторов обслуживают клиентов
+    public static final int REACTOR_COUNT = Integer.getInteger("chat.reactors",
+            Runtime.getRuntime().availableProcessors());
+    public static final Balancing REACTOR_BALANCING = Balancing.valueOf(
+            System.getProperty("chat.reactors.balancing", "ROUND_ROBIN").toUpperCase());
+
+    // каталог с историей комнат, по умолчанию история выключена (пустая строка)
+    public static final String HISTORY_DIR = System.getProperty("chat.history.dir", "");
+    // размер одного файла журнала комнаты
+    public static final int HISTORY_SEGMENT_SIZE = Integer.getInteger("chat.history.segmentSize", 1024 * 1024);
+    // сколько последних файлов журнала хранить на комнату, старые удаляются
+    public static final int HISTORY_MAX_SEGMENTS = Integer.getInteger("chat.history.maxSegments", 64);
+    // сколько последних сообщений показывать при входе в комнату
+    public static final int HISTORY_REPLAY = Integer.getInteger("chat.history.replay", 20);
+    // сколько сообщений отдавать на одну команду HISTORY
+    public static final int HISTORY_PAGE_SIZE = Integer.getInteger("chat.history.pageSize", 50);
+
+    // память под последние сообщения одной комнаты (их не больше chat.history.replay)
+    public static final long RECENT_ROOM_BYTES = Long.getLong("chat.recent.roomBytes", 256 * 1024);
+    // память под последние сообщения всех комнат, сверх нее освобождаются самые давно не используемые
+    public static final long RECENT_TOTAL_BYTES = Long.getLong("chat.recent.totalBytes", 64L * 1024 * 1024);
+
+    // сколько миллисекунд копить изменения списка комнат перед рассылкой подписчикам
+    public static final long ROOM_LIST_PUSH_INTERVAL = Long.getLong("chat.rooms.pushInterval", 100);
+
+    // кластер (см. Cluster): порт для связи узлов, 0 - сервер работает один
+    public static final int CLUSTER_PORT = Integer.getInteger("chat.cluster.port", 0);
+    // адрес, по которому этот узел доступен другим узлам
+    public static final String CLUSTER_HOST = System.getProperty("chat.cluster.host", "localhost");
+    // адреса уже работающих узлов через запятую, host:port
+    public static final String CLUSTER_SEEDS = System.getProperty("chat.cluster.seeds", "");
+    // как часто узлы проверяют связь друг с другом
+    public static final long CLUSTER_HEARTBEAT_MILLIS = Long.getLong("chat.cluster.heartbeat", 500);
+    // через сколько миллисекунд молчания узел считается ушедшим
+    public static final long CLUSTER_NODE_TIMEOUT_MILLIS = Long.getLong("chat.cluster.timeout", 2000);
+
+    // допуск подключений (см. AdmissionController): всего открытых соединений и с одного адреса (0 - без лимита)
+    public static final int MAX_CONNECTIONS = Integer.getInteger("chat.admission.maxConnections", 50);
+    public static final int MAX_CONNECTIONS_PER_ADDRESS = Integer.getInteger("chat.admission.maxPerAddress", 0);
+    // сколько подключений принимать в секунду (0 - без ограничения) и сколько подряд
+    public static final int ACCEPT_RATE = Integer.getInteger("chat.admission.acceptRate", 0);
+    public static final int ACCEPT_BURST = Integer.getInteger("chat.admission.acceptBurst", 20);
+
+    // лимиты команд одного клиента (см. TokenBucket): в секунду (0 - без лимита) и сколько подряд.
+    // сообщения в комнату, создание комнат и все остальные команды считаются отдельно
+    public static final int MESSAGE_RATE = Integer.getInteger("chat.limit.messageRate", 20);
+    public static final int MESSAGE_BURST = Integer.getInteger("chat.limit.messageBurst", 40);
+    public static final int CREATE_RATE = Integer.getInteger("chat.limit.createRate", 1);
+    public static final int CREATE_BURST = Integer.getInteger("chat.limit.createBurst", 5);
+    public static final int COMMAND_RATE = Integer.getInteger("chat.limit.commandRate", 50);
+    public static final int COMMAND_BURST = Integer.getInteger("chat.limit.commandBurst", 100);
+
+    // сроки соединений в миллисекундах, 0 - без срока.
+    // сколько ждать NAME от нового клиента
+    public static final long HANDSHAKE_TIMEOUT_MILLIS = Long.getLong("chat.timeout.handshake", 10000);
+    // через сколько тишины от клиента отправить ему PING
+    public static final long HEARTBEAT_INTERVAL_MILLIS = Long.getLong("chat.heartbeat.interval", 30000);
+    // через сколько тишины от клиента отключить его (полуоткрытые соединения, нет ответа на PING)
+    public static final long IDLE_TIMEOUT_MILLIS = Long.getLong("chat.timeout.idle", 90000);
+    // точность сроков, шаг колеса TimingWheel
+    public static final long TIMER_TICK_MILLIS = Long.getLong("chat.timeout.tick", 100);
+
+    // как часто пересчитывать скорости и перцентили в ServerMetrics (JMX)
+    public static final long METRICS_INTERVAL = Long.getLong("chat.metrics.interval", 5000);
+
+    private ServerConfig() {
+    }
+}
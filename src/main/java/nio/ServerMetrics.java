@@ -0,0 +1,370 @@
+package nio;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// метрики сервера. запись - это LongAdder или гистограмма без блокировок,
+// поэтому их можно дергать из реакторов на каждом сообщении.
+// раз в интервал отдельный поток считает скорости и перцентили за прошедший интервал,
+// а читают их через JMX (см. ServerMetricsMBean и RoomMBean)
+public class ServerMetrics implements ServerMetricsMBean {
+    private static final ServerMetrics SHARED = new ServerMetrics();
+
+    private final LongAdder acceptedConnections = new LongAdder();
+    private final LongAdder rejectedConnections = new LongAdder();
+    private final LongAdder timedOutConnections = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder framesIn = new LongAdder();
+    private final LongAdder throttledCommands = new LongAdder();
+    private final LongAdder framesOut = new LongAdder();
+    private final LongAdder queuedOutboundBytes = new LongAdder();
+    private final LongAdder droppedFrames = new LongAdder();
+    private final LongAdder slowConsumerDisconnects = new LongAdder();
+    private final LongAdder coalescingConnections = new LongAdder();
+    private final LongAdder coalescedFrames = new LongAdder();
+    private final LongAdder collapsedNotices = new LongAdder();
+    // микросекунды, за текущий интервал
+    private final LatencyHistogram selectLoopTime = new LatencyHistogram();
+    private final LatencyHistogram broadcastTime = new LatencyHistogram();
+
+    private RoomRegistry registry;
+    private RecentMessages.Budget recentBudget;
+
+    // значения за прошлый интервал, их пишет только поток метрик
+    private volatile double acceptsPerSecond;
+    private volatile double bytesInPerSecond;
+    private volatile double bytesOutPerSecond;
+    private volatile double framesInPerSecond;
+    private volatile double framesOutPerSecond;
+    private volatile long[] selectLoopPercentiles = new long[4];
+    private volatile long[] broadcastPercentiles = new long[4];
+    private long lastAccepted;
+    private long lastBytesIn;
+    private long lastBytesOut;
+    private long lastFramesIn;
+    private long lastFramesOut;
+
+    private ServerMetrics() {
+    }
+
+    public static ServerMetrics shared() {
+        return SHARED;
+    }
+
+    // регистрирует метрики в JMX и запускает пересчет раз в intervalMillis
+    public void start(RoomRegistry registry, RecentMessages.Budget recentBudget, long intervalMillis) {
+        this.registry = registry;
+        this.recentBudget = recentBudget;
+        register(this, "nio:type=ServerMetrics");
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(() -> tick(intervalMillis / 1000.0),
+                intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void registerRoom(Room room) {
+        register(room, "nio:type=Room,name=" + ObjectName.quote(room.getName()));
+    }
+
+    private static void register(Object bean, String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(bean, new ObjectName(name));
+        } catch (JMException e) {
+            Log.warn("не удалось зарегистрировать метрики ", name, ": ", e.getMessage());
+        }
+    }
+
+    private void tick(double seconds) {
+        long accepted = acceptedConnections.sum();
+        long in = bytesIn.sum();
+        long out = bytesOut.sum();
+        long framesInNow = framesIn.sum();
+        long framesOutNow = framesOut.sum();
+        acceptsPerSecond = (accepted - lastAccepted) / seconds;
+        bytesInPerSecond = (in - lastBytesIn) / seconds;
+        bytesOutPerSecond = (out - lastBytesOut) / seconds;
+        framesInPerSecond = (framesInNow - lastFramesIn) / seconds;
+        framesOutPerSecond = (framesOutNow - lastFramesOut) / seconds;
+        lastAccepted = accepted;
+        lastBytesIn = in;
+        lastBytesOut = out;
+        lastFramesIn = framesInNow;
+        lastFramesOut = framesOutNow;
+
+        selectLoopPercentiles = percentiles(selectLoopTime);
+        broadcastPercentiles = percentiles(broadcastTime);
+
+        for (Room room : registry.getRooms()) {
+            room.updateMessageRate(seconds);
+        }
+    }
+
+    // p50, p99, p999, max за интервал, гистограмма начинается заново
+    private static long[] percentiles(LatencyHistogram histogram) {
+        long[] result = {histogram.getPercentile(50), histogram.getPercentile(99),
+                histogram.getPercentile(99.9), histogram.getMax()};
+        histogram.reset();
+        return result;
+    }
+
+    // запись метрик
+
+    public void connectionAccepted() {
+        acceptedConnections.increment();
+    }
+
+    public void connectionRejected() {
+        rejectedConnections.increment();
+    }
+
+    public void connectionTimedOut() {
+        timedOutConnections.increment();
+    }
+
+    public void bytesRead(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    public void commandReceived() {
+        framesIn.increment();
+    }
+
+    public void commandThrottled() {
+        throttledCommands.increment();
+    }
+
+    // изменился объем очереди отправки какого-то соединения
+    public void queuedBytesChanged(long delta) {
+        queuedOutboundBytes.add(delta);
+    }
+
+    // байты ушли в сокет
+    public void bytesWritten(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    public void frameSent() {
+        framesOut.increment();
+    }
+
+    public void frameDropped() {
+        droppedFrames.increment();
+    }
+
+    public void slowConsumerDisconnected() {
+        slowConsumerDisconnects.increment();
+    }
+
+    // очередь клиента перешла в режим склейки или вышла из него
+    public void coalescingStarted() {
+        coalescingConnections.increment();
+    }
+
+    public void coalescingStopped() {
+        coalescingConnections.decrement();
+    }
+
+    public void frameCoalesced() {
+        coalescedFrames.increment();
+    }
+
+    public void noticesCollapsed(int count) {
+        collapsedNotices.add(count);
+    }
+
+    public void selectLoopIteration(long nanos) {
+        selectLoopTime.record(nanos / 1000);
+    }
+
+    public void broadcastCompleted(long nanos) {
+        broadcastTime.record(nanos / 1000);
+    }
+
+    // ServerMetricsMBean
+
+    @Override
+    public long getAcceptedConnections() {
+        return acceptedConnections.sum();
+    }
+
+    @Override
+    public long getRejectedConnections() {
+        return rejectedConnections.sum();
+    }
+
+    @Override
+    public long getTimedOutConnections() {
+        return timedOutConnections.sum();
+    }
+
+    @Override
+    public double getAcceptsPerSecond() {
+        return acceptsPerSecond;
+    }
+
+    @Override
+    public int getConnectedClients() {
+        return registry.getClientCount();
+    }
+
+    @Override
+    public int getRoomCount() {
+        return registry.getRoomCount();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public double getBytesInPerSecond() {
+        return bytesInPerSecond;
+    }
+
+    @Override
+    public double getBytesOutPerSecond() {
+        return bytesOutPerSecond;
+    }
+
+    @Override
+    public long getFramesIn() {
+        return framesIn.sum();
+    }
+
+    @Override
+    public long getThrottledCommands() {
+        return throttledCommands.sum();
+    }
+
+    @Override
+    public long getFramesOut() {
+        return framesOut.sum();
+    }
+
+    @Override
+    public double getFramesInPerSecond() {
+        return framesInPerSecond;
+    }
+
+    @Override
+    public double getFramesOutPerSecond() {
+        return framesOutPerSecond;
+    }
+
+    @Override
+    public long getQueuedOutboundBytes() {
+        return queuedOutboundBytes.sum();
+    }
+
+    @Override
+    public long getDroppedFrames() {
+        return droppedFrames.sum();
+    }
+
+    @Override
+    public long getSlowConsumerDisconnects() {
+        return slowConsumerDisconnects.sum();
+    }
+
+    @Override
+    public long getCoalescingConnections() {
+        return coalescingConnections.sum();
+    }
+
+    @Override
+    public long getCoalescedFrames() {
+        return coalescedFrames.sum();
+    }
+
+    @Override
+    public long getCollapsedNotices() {
+        return collapsedNotices.sum();
+    }
+
+    @Override
+    public long getSelectLoopP50Micros() {
+        return selectLoopPercentiles[0];
+    }
+
+    @Override
+    public long getSelectLoopP99Micros() {
+        return selectLoopPercentiles[1];
+    }
+
+    @Override
+    public long getSelectLoopP999Micros() {
+        return selectLoopPercentiles[2];
+    }
+
+    @Override
+    public long getSelectLoopMaxMicros() {
+        return selectLoopPercentiles[3];
+    }
+
+    @Override
+    public long getBroadcastP50Micros() {
+        return broadcastPercentiles[0];
+    }
+
+    @Override
+    public long getBroadcastP99Micros() {
+        return broadcastPercentiles[1];
+    }
+
+    @Override
+    public long getBroadcastP999Micros() {
+        return broadcastPercentiles[2];
+    }
+
+    @Override
+    public long getBroadcastMaxMicros() {
+        return broadcastPercentiles[3];
+    }
+
+    @Override
+    public long getBufferPoolOutstanding() {
+        return BufferPool.shared().getOutstanding();
+    }
+
+    @Override
+    public long getBufferPoolMisses() {
+        return BufferPool.shared().getMisses();
+    }
+
+    @Override
+    public long getBufferPoolThreadCacheHits() {
+        return BufferPool.shared().getThreadCacheHits();
+    }
+
+    @Override
+    public long getBufferPoolSharedHits() {
+        return BufferPool.shared().getSharedHits();
+    }
+
+    @Override
+    public long getBufferPoolLeaks() {
+        return BufferPool.shared().getLeaks();
+    }
+
+    @Override
+    public long getRecentMessagesBytes() {
+        return recentBudget.getUsed();
+    }
+}
@@ -0,0 +1,86 @@
+package nio;
+
+// что сервер показывает через JMX (jconsole, VisualVM: nio -> ServerMetrics).
+// счетчики копятся с запуска, "в секунду" и перцентили - за последний интервал chat.metrics.interval,
+// времена в микросекундах
+public interface ServerMetricsMBean {
+    long getAcceptedConnections();
+
+    long getRejectedConnections();
+
+    // отключены по сроку: не представились, молчали или не ответили на PING
+    long getTimedOutConnections();
+
+    double getAcceptsPerSecond();
+
+    int getConnectedClients();
+
+    int getRoomCount();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    double getBytesInPerSecond();
+
+    double getBytesOutPerSecond();
+
+    // команды от клиентов
+    long getFramesIn();
+
+    // команды сверх лимитов chat.limit.*, выброшены
+    long getThrottledCommands();
+
+    // сообщения, целиком ушедшие клиентам
+    long getFramesOut();
+
+    double getFramesInPerSecond();
+
+    double getFramesOutPerSecond();
+
+    // сколько байт сейчас ждет отправки во всех очередях
+    long getQueuedOutboundBytes();
+
+    long getDroppedFrames();
+
+    long getSlowConsumerDisconnects();
+
+    // клиенты, которым сейчас склеивают сообщения, потому что они не успевают читать
+    long getCoalescingConnections();
+
+    // сообщения, скопированные в буферы склейки вместо отдельной отправки
+    long getCoalescedFrames();
+
+    // уведомления о входе и выходе, которые взаимно уничтожились в очередях отставших клиентов
+    long getCollapsedNotices();
+
+    // время обработки одного прохода селектора, без ожидания в select
+    long getSelectLoopP50Micros();
+
+    long getSelectLoopP99Micros();
+
+    long getSelectLoopP999Micros();
+
+    long getSelectLoopMaxMicros();
+
+    // время рассылки одного сообщения по комнате
+    long getBroadcastP50Micros();
+
+    long getBroadcastP99Micros();
+
+    long getBroadcastP999Micros();
+
+    long getBroadcastMaxMicros();
+
+    long getBufferPoolOutstanding();
+
+    long getBufferPoolMisses();
+
+    long getBufferPoolThreadCacheHits();
+
+    long getBufferPoolSharedHits();
+
+    long getBufferPoolLeaks();
+
+    long getRecentMessagesBytes();
+}
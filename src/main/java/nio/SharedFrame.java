@@ -0,0 +1,229 @@
+package nio;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// готовое к отправке сообщение сервера (текстовая строка с '\n' в конце или
+// бинарный кадр), закодированное один раз в direct-буфер. при рассылке один и тот же кадр попадает в очереди всех
+// получателей, каждый получает свое read-only представление буфера.
+// кадр считает ссылки: создатель держит одну, каждая очередь - еще по одной,
+// буфер возвращается в BufferPool, когда последний получатель его отправил
+public final class SharedFrame {
+    // кодировщик не потокобезопасный, у каждого потока свой
+    private static final ThreadLocal<CharsetEncoder> encoders = ThreadLocal.withInitial(() ->
+            StandardCharsets.UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE));
+
+    private final ByteBuffer buffer;
+    // то же содержимое, но только для чтения - из него делаются представления для получателей
+    private ByteBuffer readOnly;
+    private final AtomicInteger references = new AtomicInteger(1);
+    private final BufferPool.LeakTracker leakTracker;
+    // тип сообщения сервера, если кадр сделан через encode(type, ...), иначе null
+    private Protocol.MessageType type;
+    // о ком это уведомление о входе или выходе из комнаты, иначе null
+    private String subject;
+
+    private SharedFrame(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.leakTracker = BufferPool.shared().track(this);
+    }
+
+    // пустой кадр из пула: нужно записать содержимое в buffer() и вызвать complete().
+    // вызывающий владеет одной ссылкой
+    static SharedFrame allocate(int maxLength) {
+        return new SharedFrame(BufferPool.shared().acquire(maxLength));
+    }
+
+    // кодирует строку и '\n' в новый кадр, вызывающий владеет одной ссылкой
+    public static SharedFrame encode(String message) {
+        // в UTF-8 один char занимает не больше 3 байт
+        SharedFrame frame = allocate(message.length() * 3 + 1);
+        putUtf8(frame.buffer, message);
+        frame.buffer.put((byte) '\n');
+        return frame.complete();
+    }
+
+    // сообщение сервера в нужном клиенту протоколе
+    public static SharedFrame encode(Protocol.MessageType type, String payload, boolean binary) {
+        if (!binary) {
+            String prefix = type.getTextPrefix();
+            SharedFrame frame = allocate((prefix.length() + payload.length()) * 3 + 1);
+            putUtf8(frame.buffer, prefix);
+            putUtf8(frame.buffer, payload);
+            frame.buffer.put((byte) '\n');
+            frame.type = type;
+            return frame.complete();
+        }
+        int length = utf8Length(payload);
+        SharedFrame frame = allocate(1 + Protocol.varintSize(length) + length);
+        frame.buffer.put(type.getOpcode());
+        Protocol.putVarint(frame.buffer, length);
+        putUtf8(frame.buffer, payload);
+        frame.type = type;
+        return frame.complete();
+    }
+
+    // сообщение сервера из уже закодированных в UTF-8 частей: head и body[start, start + length)
+    // копируются в кадр как есть, без строк. body может быть буфером чтения клиента
+    static SharedFrame encode(Protocol.MessageType type, byte[] head, ByteBuffer body, int start, int length,
+                              boolean binary) {
+        int payloadLength = head.length + length;
+        SharedFrame frame;
+        if (binary) {
+            frame = allocate(1 + Protocol.varintSize(payloadLength) + payloadLength);
+            frame.buffer.put(type.getOpcode());
+            Protocol.putVarint(frame.buffer, payloadLength);
+        } else {
+            String prefix = type.getTextPrefix();
+            frame = allocate(prefix.length() + payloadLength + 1);
+            putUtf8(frame.buffer, prefix);
+        }
+        frame.buffer.put(head);
+        frame.buffer.put(frame.buffer.position(), body, start, length);
+        frame.buffer.position(frame.buffer.position() + length);
+        if (!binary) {
+            frame.buffer.put((byte) '\n');
+        }
+        frame.type = type;
+        return frame.complete();
+    }
+
+    // помечает кадр как уведомление о входе или выходе участника subject:
+    // очередь отставшего клиента может схлопнуть вход и выход одного участника
+    SharedFrame about(String subject) {
+        this.subject = subject;
+        return this;
+    }
+
+    // дописывает строку в UTF-8, в буфере должно быть место
+    static void putUtf8(ByteBuffer buffer, CharSequence text) {
+        CharsetEncoder encoder = encoders.get().reset();
+        encoder.encode(CharBuffer.wrap(text), buffer, true);
+        encoder.flush(buffer);
+    }
+
+    // буфер для заполнения, пока кадр не завершен
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    // содержимое записано, дальше кадр только читается
+    SharedFrame complete() {
+        buffer.flip();
+        readOnly = buffer.asReadOnlyBuffer();
+        return this;
+    }
+
+    // сколько байт займет строка в UTF-8, без кодирования
+    public static int utf8Length(CharSequence text) {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    // корректен ли UTF-8 в buffer[start, end): без обрывков последовательностей,
+    // лишне длинных форм, суррогатов и символов за U+10FFFF. проверка на месте, без декодирования
+    static boolean isValidUtf8(ByteBuffer buffer, int start, int end) {
+        int i = start;
+        while (i < end) {
+            int b = buffer.get(i) & 0xFF;
+            if (b < 0x80) {
+                i++;
+                continue;
+            }
+            int size;
+            int min;
+            int code;
+            if (b >= 0xC2 && b <= 0xDF) {
+                size = 2;
+                min = 0x80;
+                code = b & 0x1F;
+            } else if (b >= 0xE0 && b <= 0xEF) {
+                size = 3;
+                min = 0x800;
+                code = b & 0x0F;
+            } else if (b >= 0xF0 && b <= 0xF4) {
+                size = 4;
+                min = 0x10000;
+                code = b & 0x07;
+            } else {
+                return false;
+            }
+            if (i + size > end) {
+                return false;
+            }
+            for (int j = 1; j < size; j++) {
+                int next = buffer.get(i + j) & 0xFF;
+                if ((next & 0xC0) != 0x80) {
+                    return false;
+                }
+                code = (code << 6) | (next & 0x3F);
+            }
+            if (code < min || code > 0x10FFFF || (code >= 0xD800 && code <= 0xDFFF)) {
+                return false;
+            }
+            i += size;
+        }
+        return true;
+    }
+
+    public Protocol.MessageType type() {
+        return type;
+    }
+
+    public String subject() {
+        return subject;
+    }
+
+    // отдельная позиция чтения для одного получателя
+    public ByteBuffer view() {
+        return readOnly.duplicate();
+    }
+
+    public int size() {
+        return readOnly.limit();
+    }
+
+    // сколько памяти занимает буфер кадра (размер класса пула)
+    public int capacity() {
+        return buffer.capacity();
+    }
+
+    public SharedFrame retain() {
+        if (references.getAndIncrement() <= 0) {
+            throw new IllegalStateException("кадр уже освобожден");
+        }
+        return this;
+    }
+
+    public void release() {
+        int left = references.decrementAndGet();
+        if (left == 0) {
+            if (leakTracker != null) {
+                leakTracker.close();
+            }
+            BufferPool.shared().release(buffer);
+        } else if (left < 0) {
+            throw new IllegalStateException("кадр освобожден дважды");
+        }
+    }
+}
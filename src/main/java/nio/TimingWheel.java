@@ -0,0 +1,147 @@
+package nio;
+
+import java.util.function.Consumer;
+
+// иерархическое колесо таймеров для сроков соединений (представиться, тишина, проверка связи).
+// время идет тиками по tickMillis. уровень 0 - 64 ячейки по одному тику,
+// каждый следующий уровень - 64 ячейки по 64 ячейки предыдущего. срок попадает
+// на уровень по тому, насколько он далек, а когда время доходит до ячейки верхнего
+// уровня, ее соединения раскладываются по нижним. постановка и снятие - O(1).
+// отдельных объектов таймеров нет: соединение само стоит в двусвязном списке
+// своей ячейки (поля timer* в Connection) и стоит не больше чем в одной.
+// не потокобезопасно, колесом пользуется один поток (реактор)
+public final class TimingWheel {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    // дальше последнего уровня (при тике 100 мс - около 19 суток) сроки не ставим
+    private static final long MAX_DELAY_TICKS = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+    private final long tickNanos;
+    private final long startNanos;
+    // головы списков ячеек, [уровень][ячейка]
+    private final Connection[][] slots = new Connection[LEVELS][SLOTS];
+    // последний обработанный тик
+    private long currentTick = 0;
+    private int size = 0;
+
+    public TimingWheel(long tickMillis, long nowNanos) {
+        this.tickNanos = tickMillis * 1_000_000;
+        this.startNanos = nowNanos;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // срок deadlineNanos (по System.nanoTime), прежний срок соединения снимается.
+    // срабатывает не раньше срока и не позже чем через тик после него
+    public void schedule(Connection connection, long deadlineNanos) {
+        cancel(connection);
+        // округляем вверх до тика, чтобы не сработать раньше срока
+        long tick = Math.max(ceilDiv(deadlineNanos - startNanos, tickNanos), currentTick + 1);
+        connection.timerTick = Math.min(tick, currentTick + MAX_DELAY_TICKS);
+        insert(connection);
+        size++;
+    }
+
+    public void cancel(Connection connection) {
+        if (connection.timerSlot == null) {
+            return;
+        }
+        unlink(connection);
+        size--;
+    }
+
+    // доводит колесо до момента nowNanos и отдает expired соединения, чей срок наступил.
+    // соединение снимается с колеса до вызова, expired может поставить его снова
+    public void advance(long nowNanos, Consumer<Connection> expired) {
+        long targetTick = (nowNanos - startNanos) / tickNanos;
+        while (currentTick < targetTick) {
+            currentTick++;
+            cascade();
+            int index = (int) (currentTick & SLOT_MASK);
+            Connection connection;
+            while ((connection = slots[0][index]) != null) {
+                unlink(connection);
+                size--;
+                expired.accept(connection);
+            }
+        }
+    }
+
+    // сколько миллисекунд можно ждать в select до следующего срока, 0 - сроков нет.
+    // смотрим только нижний уровень: если там пусто, просыпаемся к его следующему
+    // обороту, когда в него опустятся соединения верхних уровней
+    public long millisToNextDeadline(long nowNanos) {
+        if (size == 0) {
+            return 0;
+        }
+        long ticks = SLOTS - (currentTick & SLOT_MASK);
+        for (int i = 1; i < SLOTS; i++) {
+            if (slots[0][(int) ((currentTick + i) & SLOT_MASK)] != null) {
+                ticks = i;
+                break;
+            }
+        }
+        long deadlineNanos = startNanos + (currentTick + ticks) * tickNanos;
+        // select(0) ждет бесконечно, поэтому не меньше 1 мс
+        return Math.max(1, ceilDiv(deadlineNanos - nowNanos, 1_000_000));
+    }
+
+    // на границе оборота уровня раскладываем очередную ячейку следующего уровня вниз
+    private void cascade() {
+        for (int level = 1; level < LEVELS; level++) {
+            if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+                return;
+            }
+            int index = (int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+            Connection connection = slots[level][index];
+            slots[level][index] = null;
+            while (connection != null) {
+                Connection next = connection.timerNext;
+                connection.timerSlot = null;
+                insert(connection);
+                connection = next;
+            }
+        }
+    }
+
+    // уровень - по расстоянию до срока, ячейка - по битам самого срока
+    private void insert(Connection connection) {
+        long delay = connection.timerTick - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delay >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        int index = (int) ((connection.timerTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+        Connection head = slots[level][index];
+        connection.timerPrev = null;
+        connection.timerNext = head;
+        if (head != null) {
+            head.timerPrev = connection;
+        }
+        slots[level][index] = connection;
+        connection.timerSlot = slots[level];
+        connection.timerIndex = index;
+    }
+
+    private void unlink(Connection connection) {
+        if (connection.timerPrev != null) {
+            connection.timerPrev.timerNext = connection.timerNext;
+        } else {
+            connection.timerSlot[connection.timerIndex] = connection.timerNext;
+        }
+        if (connection.timerNext != null) {
+            connection.timerNext.timerPrev = connection.timerPrev;
+        }
+        connection.timerPrev = null;
+        connection.timerNext = null;
+        connection.timerSlot = null;
+    }
+
+    private static long ceilDiv(long a, long b) {
+        return Math.floorDiv(a + b - 1, b);
+    }
+}
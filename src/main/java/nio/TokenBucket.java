@@ -0,0 +1,44 @@
+package nio;
+
+// ведро токенов: в среднем ratePerSecond событий в секунду, подряд - не больше burst.
+// запас хранится в наносекундах: каждая прошедшая наносекунда добавляет наносекунду запаса,
+// событие тратит nanosPerToken. время передает вызывающий (System.nanoTime),
+// поэтому проверка - только арифметика, без объектов и системных вызовов.
+// не потокобезопасно, ведром пользуется один поток
+public final class TokenBucket {
+    private final long nanosPerToken;
+    private final long capacityNanos;
+    private long creditNanos;
+    private long lastRefill;
+
+    public TokenBucket(int ratePerSecond, int burst, long now) {
+        this.nanosPerToken = 1_000_000_000L / ratePerSecond;
+        this.capacityNanos = nanosPerToken * Math.max(burst, 1);
+        this.creditNanos = capacityNanos;
+        this.lastRefill = now;
+    }
+
+    // забирает токен, false если ведро пусто
+    public boolean tryTake(long now) {
+        refill(now);
+        if (creditNanos < nanosPerToken) {
+            return false;
+        }
+        creditNanos -= nanosPerToken;
+        return true;
+    }
+
+    // сколько наносекунд ждать до следующего токена, 0 - он уже есть
+    public long nanosToNextToken(long now) {
+        refill(now);
+        return Math.max(0, nanosPerToken - creditNanos);
+    }
+
+    private void refill(long now) {
+        long elapsed = now - lastRefill;
+        if (elapsed > 0) {
+            creditNanos = Math.min(capacityNanos, creditNanos + Math.min(elapsed, capacityNanos));
+            lastRefill = now;
+        }
+    }
+}
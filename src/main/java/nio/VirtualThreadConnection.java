@@ -0,0 +1,140 @@
+package nio;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+// движок virtual: у каждого клиента блокирующий канал и два виртуальных потока.
+// читающий поток разбирает команды и выполняет их теми же обработчиками, что и реакторы,
+// пишущий спит, пока в очереди соединения нет сообщений, и отправляет их блокирующей записью.
+// запись вынесена в отдельный поток, чтобы медленный клиент не задерживал
+// рассылку по комнате из чужих потоков
+public class VirtualThreadConnection implements ConnectionOwner {
+    // сроки всех соединений движка: селектора нет, поэтому одно колесо под замком
+    // и поток, который проворачивает его каждый тик
+    private static final TimingWheel timeouts = new TimingWheel(ServerConfig.TIMER_TICK_MILLIS, System.nanoTime());
+
+    static {
+        Thread ticker = new Thread(VirtualThreadConnection::tickLoop, "timeouts");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    private final Connection connection;
+    private final Thread reader;
+    private final Thread writer;
+
+    private VirtualThreadConnection(SocketChannel channel) {
+        this.connection = new Connection(channel, this);
+        this.reader = Thread.ofVirtual().name("client-reader").unstarted(this::readLoop);
+        this.writer = Thread.ofVirtual().name("client-writer").unstarted(this::writeLoop);
+    }
+
+    // вызывается из потока акцептора, канал должен быть блокирующим
+    public static void start(SocketChannel channel) {
+        VirtualThreadConnection owner = new VirtualThreadConnection(channel);
+        owner.writer.start();
+        owner.reader.start();
+    }
+
+    @Override
+    public void requestFlush(Connection connection) {
+        LockSupport.unpark(writer);
+    }
+
+    // закрытие канала прерывает блокирующие чтение и запись,
+    // а освобождает соединение читающий поток, когда выйдет из цикла
+    @Override
+    public void requestDisconnect(Connection connection) {
+        try {
+            connection.getChannel().close();
+        } catch (IOException e) {
+            Log.warn("ошибка при закрытии канала: ", e.getMessage());
+        }
+        LockSupport.unpark(writer);
+    }
+
+    private void readLoop() {
+        ChatServerNio.onConnected(connection);
+        checkTimeouts(connection);
+        FrameDecoder decoder = connection.getDecoder();
+        try {
+            while (true) {
+                // читаем в буфер соединения, там может остаться хвост прошлой команды
+                int readBytes = connection.getChannel().read(decoder.getBuffer());
+                if (readBytes == -1) {
+                    break;
+                }
+                ServerMetrics.shared().bytesRead(readBytes);
+                connection.touch(System.nanoTime());
+                ChatServerNio.processCommands(connection);
+            }
+        } catch (ClosedChannelException e) {
+            // канал закрыли через requestDisconnect
+        } catch (IOException e) {
+            connection.disconnect("ошибка при обработке сообщения: ", e.getMessage());
+        } catch (IllegalArgumentException e) {
+            // испорченный бинарный кадр, дальше поток не разобрать
+            connection.disconnect("ошибка протокола: ", e.getMessage());
+        }
+
+        synchronized (timeouts) {
+            timeouts.cancel(connection);
+        }
+        if (connection.markClosed()) {
+            LockSupport.unpark(writer);
+            ChatServerNio.disconnectClient(connection);
+            connection.releaseBuffers();
+        }
+    }
+
+    private static void tickLoop() {
+        List<Connection> expired = new ArrayList<>();
+        while (true) {
+            try {
+                Thread.sleep(ServerConfig.TIMER_TICK_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            synchronized (timeouts) {
+                timeouts.advance(System.nanoTime(), expired::add);
+            }
+            // проверяем без замка: PING и отключение кладут заявки другим потокам
+            for (Connection connection : expired) {
+                checkTimeouts(connection);
+            }
+            expired.clear();
+        }
+    }
+
+    private static void checkTimeouts(Connection connection) {
+        long deadline = ChatServerNio.checkTimeouts(connection, System.nanoTime());
+        if (deadline != ChatServerNio.NO_DEADLINE) {
+            synchronized (timeouts) {
+                timeouts.schedule(connection, deadline);
+            }
+        }
+    }
+
+    private void writeLoop() {
+        OutboundQueue queue = connection.getOutboundQueue();
+        try {
+            while (!connection.isDisconnectRequested()) {
+                // сброс флага до записи: сообщение, пришедшее во время записи,
+                // снова разбудит поток через requestFlush
+                connection.clearFlushPending();
+                while (queue.writeHeadTo(connection.getChannel())) {
+                    // пишем, пока очередь не опустеет
+                }
+                LockSupport.park(this);
+            }
+        } catch (ClosedChannelException e) {
+            // канал закрыли через requestDisconnect
+        } catch (IOException e) {
+            connection.disconnect("ошибка при отправке сообщения: ", e.getMessage());
+        }
+    }
+}
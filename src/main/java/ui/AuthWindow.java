@@ -2,14 +2,20 @@ package ui;
 
 import nio.ChatClient;
 import javax.swing.*;
+import java.util.concurrent.ExecutionException;
 
 public class AuthWindow extends JFrame {
     private final JTextField nameField;
     private final JButton enterButton;
     private final ChatClient client;
+    // куда подключаться, когда имя введено
+    private final String address;
+    private final int port;
 
-    public AuthWindow(ChatClient client) {
+    public AuthWindow(ChatClient client, String address, int port) {
         this.client = client;
+        this.address = address;
+        this.port = port;
         setTitle("как вас зовут ?");
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setSize(360, 180);
@@ -38,12 +44,58 @@ public class AuthWindow extends JFrame {
             JOptionPane.showMessageDialog(this, "введите имя", "ошибка", JOptionPane.ERROR_MESSAGE);
             return;
         }
-        boolean success = client.authenticate(name);
+        // подключение и имя - сразу одно за другим, пока не истек срок рукопожатия на сервере.
+        // подключение может ждать секунды, поэтому оно идет в фоне (SwingWorker), а не в потоке Swing:
+        // окно не замирает, только кнопка выключена до ответа
+        enterButton.setEnabled(false);
+        nameField.setEnabled(false);
+        new SwingWorker<Boolean, Void>() {
+            @Override
+            protected Boolean doInBackground() {
+                if (!client.connectToServer(address, port)) {
+                    return null;
+                }
+                return client.authenticate(name);
+            }
+
+            @Override
+            protected void done() {
+                onConnected(getResult(this));
+            }
+        }.execute();
+    }
+
+    // null - не удалось подключиться
+    private static Boolean getResult(SwingWorker<Boolean, Void> worker) {
+        try {
+            return worker.get();
+        } catch (InterruptedException | ExecutionException e) {
+            return null;
+        }
+    }
+
+    private void onConnected(Boolean success) {
+        if (success == null) {
+            JOptionPane.showMessageDialog(this,
+                    "не удалось подключиться. проверьте адрес/порт и сервер.",
+                    "ошибка",
+                    JOptionPane.ERROR_MESSAGE);
+            dispose();
+            client.showConnectWindow(); // можно поправить адрес и попробовать снова
+            return;
+        }
         if (success) {
+            JOptionPane.showMessageDialog(this,
+                    "успешное подключение к " + address + ":" + port,
+                    "готово",
+                    JOptionPane.INFORMATION_MESSAGE);
             dispose();
             client.showRoomWindow();
         } else {
             JOptionPane.showMessageDialog(this, "не удалось зарегистрироваться", "ошибка", JOptionPane.ERROR_MESSAGE);
+            client.disconnect();
+            dispose();
+            client.showConnectWindow();
         }
     }
-}
\ No newline at end of file
+}
@@ -3,15 +3,65 @@ package ui;
 import nio.ChatClient;
 import javax.swing.*;
 import javax.swing.text.BadLocationException;
-import javax.swing.text.Style;
+import javax.swing.text.DefaultCaret;
+import javax.swing.text.DefaultStyledDocument;
+import javax.swing.text.DefaultStyledDocument.ElementSpec;
+import javax.swing.text.Element;
+import javax.swing.text.SimpleAttributeSet;
 import javax.swing.text.StyleConstants;
-import javax.swing.text.StyledDocument;
 import java.awt.*;
+import java.awt.event.AdjustmentEvent;
+import java.awt.geom.Rectangle2D;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ChatWindow extends JFrame implements ChatClient.MessageListener {
+    // не чаще 60 обновлений окна в секунду, сколько бы сообщений ни пришло
+    private static final int FRAME_MILLIS = 1000 / 60;
+    // сколько строк держать в окне (0 - без ограничения). лишние вытесняются пачками
+    // по десятой части лимита, и только пока окно прокручено вниз: строки, которые
+    // пользователь листает, не трогаем, пока он не вернется к концу
+    private static final int SCROLLBACK_LINES = Integer.getInteger("chat.scrollback.lines", 5000);
+    // -Dchat.scrollback.spill=true: вытесненные строки уходят во временный файл
+    // и возвращаются в окно, когда пользователь долистает до начала
+    private static final boolean SCROLLBACK_SPILL = Boolean.getBoolean("chat.scrollback.spill");
+    // насколько пикселей от низа окно еще считается прокрученным вниз
+    private static final int BOTTOM_SLACK = 16;
+
+    // стили создаются один раз, а не на каждое сообщение
+    private static final SimpleAttributeSet NAME_STYLE = new SimpleAttributeSet();
+    private static final SimpleAttributeSet MESSAGE_STYLE = new SimpleAttributeSet();
+    private static final SimpleAttributeSet SYSTEM_STYLE = new SimpleAttributeSet();
+    private static final SimpleAttributeSet PARAGRAPH_STYLE = new SimpleAttributeSet();
+
+    static {
+        StyleConstants.setForeground(NAME_STYLE, Color.PINK);
+        StyleConstants.setBold(NAME_STYLE, true);
+        StyleConstants.setForeground(MESSAGE_STYLE, Color.BLACK);
+        StyleConstants.setForeground(SYSTEM_STYLE, Color.GRAY);
+        StyleConstants.setItalic(SYSTEM_STYLE, true);
+    }
+
     private final ChatClient client;
     private final JTextPane chatPane;
+    private final JScrollPane scrollPane;
+    private final ChatDocument document = new ChatDocument();
+    // вытесненные строки на диске, null - не сохраняются
+    private ScrollbackSpill spill;
+    // исходные сообщения строк окна по порядку, только для сохранения вытесненных
+    private final ArrayDeque<String> shownMessages = new ArrayDeque<>();
+    // сообщения, пришедшие с прошлого обновления окна: кладет поток клиента, забирает поток Swing
+    private final Queue<String> pendingMessages = new ConcurrentLinkedQueue<>();
+    // обновление окна уже запланировано
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    // откладывает обновление, если прошлое было меньше кадра назад
+    private final Timer drainTimer;
+    private long lastDrain = 0;
     private final JTextField inputField;
     private final JButton sendButton;
     private final JButton exitButton;
@@ -34,9 +84,21 @@ public class ChatWindow extends JFrame implements ChatClient.MessageListener {
         setLocationRelativeTo(null);
 
         // область сообщений
-        chatPane = new JTextPane();
+        chatPane = new JTextPane(document);
         chatPane.setEditable(false);
-        JScrollPane scrollPane = new JScrollPane(chatPane);
+        // прокручиваем сами и только если пользователь не листает историю
+        ((DefaultCaret) chatPane.getCaret()).setUpdatePolicy(DefaultCaret.NEVER_UPDATE);
+        drainTimer = new Timer(FRAME_MILLIS, e -> drainMessages());
+        drainTimer.setRepeats(false);
+        scrollPane = new JScrollPane(chatPane);
+        if (SCROLLBACK_SPILL && SCROLLBACK_LINES > 0) {
+            try {
+                spill = new ScrollbackSpill();
+                scrollPane.getVerticalScrollBar().addAdjustmentListener(this::onScrolled);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
 
         inputField = new JTextField();
         sendButton = new JButton("отправить");
@@ -62,8 +124,136 @@ public class ChatWindow extends JFrame implements ChatClient.MessageListener {
 
     @Override
     public void onMessageReceived(String message) {
-        // обновляем UI в потоке Swing
-        SwingUtilities.invokeLater(() -> appendMessage(message));
+        pendingMessages.add(message);
+        // одна задача в очереди Swing на все сообщения до следующего обновления окна
+        if (drainScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::scheduleDrain);
+        }
+    }
+
+    // поток Swing: обновляем окно сразу или через остаток кадра
+    private void scheduleDrain() {
+        long wait = FRAME_MILLIS - (System.currentTimeMillis() - lastDrain);
+        if (wait <= 0) {
+            drainMessages();
+        } else {
+            drainTimer.setInitialDelay((int) wait);
+            drainTimer.restart();
+        }
+    }
+
+    // все накопившиеся сообщения - одной вставкой в документ и одной прокруткой
+    private void drainMessages() {
+        lastDrain = System.currentTimeMillis();
+        // сбрасываем до разбора: сообщение, пришедшее во время него, запланирует следующий кадр
+        drainScheduled.set(false);
+        List<ElementSpec> specs = new ArrayList<>();
+        String message;
+        while ((message = pendingMessages.poll()) != null) {
+            appendMessage(specs, message);
+            if (spill != null) {
+                shownMessages.add(message);
+            }
+        }
+        if (specs.isEmpty()) {
+            return;
+        }
+        boolean atBottom = isAtBottom();
+        try {
+            document.append(specs);
+            trimScrollback(atBottom);
+        } catch (BadLocationException e) {
+            e.printStackTrace();
+        }
+        if (atBottom) {
+            chatPane.setCaretPosition(document.getLength()); // прокрутка вниз
+        }
+    }
+
+    private boolean isAtBottom() {
+        JScrollBar bar = scrollPane.getVerticalScrollBar();
+        return bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - BOTTOM_SLACK;
+    }
+
+    // вытесняем самые старые строки одним удалением из документа.
+    // пока пользователь листает вверх, начало документа - то, что он читает
+    // (в том числе только что возвращенное из файла), поэтому ждем, пока он вернется вниз
+    private void trimScrollback(boolean atBottom) throws BadLocationException {
+        if (SCROLLBACK_LINES <= 0 || !atBottom) {
+            return;
+        }
+        Element root = document.getDefaultRootElement();
+        // последний абзац - пустой, после перевода строки последнего сообщения
+        int lines = root.getElementCount() - 1;
+        if (lines <= SCROLLBACK_LINES + SCROLLBACK_LINES / 10) {
+            return;
+        }
+        int remove = lines - SCROLLBACK_LINES;
+        if (spill != null) {
+            List<String> trimmed = new ArrayList<>(remove);
+            for (int i = 0; i < remove; i++) {
+                trimmed.add(shownMessages.poll());
+            }
+            try {
+                spill.push(trimmed);
+            } catch (IOException e) {
+                // без файла продолжаем просто вытеснять
+                e.printStackTrace();
+                closeSpill();
+            }
+        }
+        document.remove(0, root.getElement(remove - 1).getEndOffset());
+    }
+
+    // долистали до начала окна: возвращаем из файла последнюю вытесненную пачку
+    private void onScrolled(AdjustmentEvent event) {
+        JScrollBar bar = scrollPane.getVerticalScrollBar();
+        if (event.getValueIsAdjusting() || bar.getValue() > bar.getMinimum()
+                || spill == null || spill.isEmpty()) {
+            return;
+        }
+        List<String> lines;
+        try {
+            lines = spill.pop();
+        } catch (IOException e) {
+            e.printStackTrace();
+            closeSpill();
+            return;
+        }
+        List<ElementSpec> specs = new ArrayList<>();
+        for (String line : lines) {
+            appendMessage(specs, line);
+        }
+        for (int i = lines.size() - 1; i >= 0; i--) {
+            shownMessages.addFirst(lines.get(i));
+        }
+        int lengthBefore = document.getLength();
+        try {
+            document.prepend(specs);
+        } catch (BadLocationException e) {
+            e.printStackTrace();
+            return;
+        }
+        int inserted = document.getLength() - lengthBefore;
+        // после раскладки оставляем вверху ту строку, что была там до вставки
+        SwingUtilities.invokeLater(() -> {
+            try {
+                Rectangle2D top = chatPane.modelToView2D(inserted);
+                if (top != null) {
+                    scrollPane.getViewport().setViewPosition(new Point(0, (int) top.getY()));
+                }
+            } catch (BadLocationException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    private void closeSpill() {
+        if (spill != null) {
+            spill.close();
+            spill = null;
+            shownMessages.clear();
+        }
     }
 
     @Override
@@ -93,69 +283,70 @@ public class ChatWindow extends JFrame implements ChatClient.MessageListener {
     private void exitChat() {
         // удаляем себя из слушателей перед выходом
         client.removeMessageListener(this);
+        drainTimer.stop();
+        closeSpill();
         client.sendMessage("exit");
         client.disconnect();
         dispose();
     }
 
-    private void appendMessage(String message) {
-        StyledDocument document = chatPane.getStyledDocument();
-
-        // создаем стиль для имени
-        Style nameStyle = chatPane.getStyle("NameStyle");
-        if (nameStyle == null) {
-            nameStyle = chatPane.addStyle("NameStyle", null);
-            StyleConstants.setForeground(nameStyle, Color.PINK);
-            StyleConstants.setBold(nameStyle, true);
-        }
-
-        // создаем стиль для сообщений
-        Style msgStyle = chatPane.getStyle("MsgStyle");
-        if (msgStyle == null) {
-            msgStyle = chatPane.addStyle("MsgStyle", null);
-            StyleConstants.setForeground(msgStyle, Color.BLACK);
+    // строка сообщения в виде кусков документа
+    private static void appendMessage(List<ElementSpec> specs, String message) {
+        int closingBracketIndex = message.indexOf("]");
+        // проверяем на системное сообщение (без имени в квадратных скобках)
+        if (!message.contains("[") || closingBracketIndex <= 0) {
+            addText(specs, message, SYSTEM_STYLE);
+        } else if (message.startsWith("[")) {
+            // обычное сообщение с именем
+            String nameTag = message.substring(0, closingBracketIndex + 1); // [имя]
+            String msg = message.substring(closingBracketIndex + 1).trim();
+            addText(specs, nameTag + " ", NAME_STYLE);
+            addText(specs, msg, MESSAGE_STYLE);
+        } else {
+            // сообщение без формата
+            addText(specs, message, MESSAGE_STYLE);
         }
+        // конец строки - конец абзаца
+        specs.add(new ElementSpec(MESSAGE_STYLE, ElementSpec.ContentType, new char[]{'\n'}, 0, 1));
+        specs.add(new ElementSpec(null, ElementSpec.EndTagType));
+        specs.add(new ElementSpec(PARAGRAPH_STYLE, ElementSpec.StartTagType));
+    }
 
-        // создаем стиль для системных сообщений
-        Style systemStyle = chatPane.getStyle("SystemStyle");
-        if (systemStyle == null) {
-            systemStyle = chatPane.addStyle("SystemStyle", null);
-            StyleConstants.setForeground(systemStyle, Color.GRAY);
-            StyleConstants.setItalic(systemStyle, true);
+    private static void addText(List<ElementSpec> specs, String text, SimpleAttributeSet style) {
+        if (text.isEmpty()) {
+            return;
         }
+        char[] chars = text.toCharArray();
+        specs.add(new ElementSpec(style, ElementSpec.ContentType, chars, 0, chars.length));
+    }
 
-        // проверяем на системное сообщение (без имени в квадратных скобках)
-        if (!message.contains("[") || message.indexOf("]") <= 0) {
-            // системное сообщение
-            try {
-                document.insertString(document.getLength(), message + "\n", systemStyle);
-            } catch (BadLocationException e) {
-                e.printStackTrace();
-            }
-        } else {
-            // обычное сообщение с именем
-            int closingBracketIndex = message.indexOf("]");
-            if (message.startsWith("[") && closingBracketIndex > 0) {
-                String nameTag = message.substring(0, closingBracketIndex + 1); // [имя]
-                String msg = message.substring(closingBracketIndex + 1).trim();
-
-                try {
-                    document.insertString(document.getLength(), nameTag + " ", nameStyle);
-                    document.insertString(document.getLength(), msg + "\n", msgStyle);
-                } catch (BadLocationException e) {
-                    e.printStackTrace();
-                }
+    // документ, в который можно дописать много строк одной вставкой:
+    // один замок, одно событие и одна перестройка отображения на пачку вместо каждой строки.
+    // абзацы размечаем так же, как insertString при вставке после перевода строки
+    private static final class ChatDocument extends DefaultStyledDocument {
+        void append(List<ElementSpec> specs) throws BadLocationException {
+            List<ElementSpec> all = new ArrayList<>(specs.size() + 2);
+            ElementSpec last = specs.get(specs.size() - 1);
+            if (getLength() > 0) {
+                // документ кончается переводом строки, вставленный текст сначала попадет
+                // в абзац этой строки: закрываем его перед текстом, а последний абзац
+                // пачки соединяем с пустым абзацем в конце документа
+                all.add(new ElementSpec(PARAGRAPH_STYLE, ElementSpec.EndTagType));
+                all.add(new ElementSpec(PARAGRAPH_STYLE, ElementSpec.StartTagType));
+                last.setDirection(ElementSpec.JoinNextDirection);
             } else {
-                // сообщение без формата
-                try {
-                    document.insertString(document.getLength(), message + "\n", msgStyle);
-                } catch (BadLocationException e) {
-                    e.printStackTrace();
-                }
+                // в пустом документе единственный абзац разрезается вставкой
+                last.setDirection(ElementSpec.JoinFractureDirection);
             }
+            all.addAll(specs);
+            insert(getLength(), all.toArray(new ElementSpec[0]));
         }
 
-        chatPane.setCaretPosition(document.getLength()); // прокрутка вниз
+        // строки из файла вытеснения - в начало, первый абзац документа разрезается вставкой
+        void prepend(List<ElementSpec> specs) throws BadLocationException {
+            specs.get(specs.size() - 1).setDirection(ElementSpec.JoinFractureDirection);
+            insert(0, specs.toArray(new ElementSpec[0]));
+        }
     }
 
     // метод для обновления названия комнаты (если нужно будет менять динамически)
@@ -58,20 +58,8 @@ public class ConnectWindow extends JFrame {
             return;
         }
 
-        // попытка подключения
-        boolean success = client.connectToServer(address, port);
-        if (success) {
-            JOptionPane.showMessageDialog(this,
-                    "успешное подключение к " + address + ":" + port,
-                    "готово",
-                    JOptionPane.INFORMATION_MESSAGE);
-            dispose(); // закрываем окно подключения
-            client.showAuthWindow(); // открываем окно ввода имени
-        } else {
-            JOptionPane.showMessageDialog(this,
-                    "не удалось подключиться. проверьте адрес/порт и сервер.",
-                    "ошибка",
-                    JOptionPane.ERROR_MESSAGE);
-        }
+        // подключаемся только после ввода имени: сервер ждет имя недолго (chat.timeout.handshake)
+        dispose(); // закрываем окно подключения
+        client.showAuthWindow(address, port); // открываем окно ввода имени
     }
 }
\ No newline at end of file
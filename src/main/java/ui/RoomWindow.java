@@ -3,7 +3,9 @@ package ui;
 import nio.ChatClient;
 import javax.swing.*;
 import java.awt.*;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class RoomWindow extends JFrame implements ChatClient.MessageListener {
     private final ChatClient client;
@@ -13,6 +15,8 @@ public class RoomWindow extends JFrame implements ChatClient.MessageListener {
     private final JButton createButton;
     private final JButton refreshButton;
     private final JTextField createField;
+    // название комнаты - ее позиция в списке, чтобы менять одну строку, не перебирая весь список
+    private final Map<String, Integer> roomPositions = new HashMap<>();
 
     public RoomWindow(ChatClient client) {
         this.client = client;
@@ -78,9 +82,9 @@ public class RoomWindow extends JFrame implements ChatClient.MessageListener {
             }
         });
         setVisible(true);
-        // запрашиваем список комнат
+        // подписываемся на список комнат: сервер пришлет его целиком, а потом только изменения
         SwingUtilities.invokeLater(() -> {
-            client.requestRoomList();
+            client.subscribeRoomList();
         });
     }
 
@@ -110,7 +114,9 @@ public class RoomWindow extends JFrame implements ChatClient.MessageListener {
     public void onRoomListReceived(List<String> rooms) {
         SwingUtilities.invokeLater(() -> {
             roomListModel.clear(); // очищаем старый список
+            roomPositions.clear();
             for (String room : rooms) {
+                roomPositions.put(roomName(room), roomListModel.size());
                 roomListModel.addElement(room); // добавляем элементы с сервера
             }
             if (roomListModel.size() > 0) { // по умолчанию
@@ -122,6 +128,29 @@ public class RoomWindow extends JFrame implements ChatClient.MessageListener {
         });
     }
 
+    // меняем только затронутые строки списка
+    @Override
+    public void onRoomListUpdated(List<String> changed) {
+        SwingUtilities.invokeLater(() -> {
+            for (String room : changed) {
+                Integer position = roomPositions.get(roomName(room));
+                if (position != null) {
+                    roomListModel.set(position, room);
+                } else {
+                    roomPositions.put(roomName(room), roomListModel.size());
+                    roomListModel.addElement(room);
+                }
+            }
+            joinButton.setEnabled(roomList.getSelectedIndex() != -1);
+        });
+    }
+
+    // "комната(2)" -> "комната"
+    private static String roomName(String entry) {
+        int bracket = entry.lastIndexOf('(');
+        return bracket > 0 ? entry.substring(0, bracket) : entry;
+    }
+
     private void joinRoom() {
         String selected = roomList.getSelectedValue(); // в списке отображается как комната(число)
         if (selected != null) {
@@ -158,8 +187,9 @@ public class RoomWindow extends JFrame implements ChatClient.MessageListener {
 
     @Override
     public void dispose() {
-        // при закрытии окна удаляем себя из слушателей
+        // при закрытии окна удаляем себя из слушателей, изменения списка больше не нужны
         client.removeMessageListener(this);
+        client.unsubscribeRoomList();
         super.dispose();
     }
 }
\ No newline at end of file
@@ -0,0 +1,81 @@
+package ui;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// строки, вытесненные из окна чата, во временном файле.
+// файл - стопка пачек: окно вытесняет самые старые строки пачкой в конец файла,
+// а когда пользователь долистывает до начала, забирает последнюю пачку обратно
+// и обрезает файл. поэтому строки в файле всегда идут по порядку,
+// а в памяти - только смещения пачек
+final class ScrollbackSpill {
+    private final Path path;
+    private final FileChannel file;
+    // где начинается каждая пачка, последняя - на вершине стопки
+    private long[] batchStarts = new long[16];
+    private int batchCount = 0;
+
+    ScrollbackSpill() throws IOException {
+        this.path = Files.createTempFile("chat-scrollback", ".txt");
+        path.toFile().deleteOnExit();
+        this.file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    boolean isEmpty() {
+        return batchCount == 0;
+    }
+
+    // строки не содержат '\n': в протоколе это конец сообщения
+    void push(List<String> lines) throws IOException {
+        StringBuilder batch = new StringBuilder();
+        for (String line : lines) {
+            batch.append(line).append('\n');
+        }
+        long start = file.size();
+        ByteBuffer buffer = ByteBuffer.wrap(batch.toString().getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            file.write(buffer, start + buffer.position());
+        }
+        if (batchCount == batchStarts.length) {
+            batchStarts = Arrays.copyOf(batchStarts, batchCount * 2);
+        }
+        batchStarts[batchCount++] = start;
+    }
+
+    // последняя вытесненная пачка, она же самая новая из вытесненных; null если файл пуст
+    List<String> pop() throws IOException {
+        if (batchCount == 0) {
+            return null;
+        }
+        long start = batchStarts[--batchCount];
+        ByteBuffer buffer = ByteBuffer.allocate((int) (file.size() - start));
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, start + buffer.position()) < 0) {
+                break;
+            }
+        }
+        file.truncate(start);
+        String text = new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8);
+        List<String> lines = new ArrayList<>(Arrays.asList(text.split("\n", -1)));
+        // после последней строки тоже '\n'
+        lines.remove(lines.size() - 1);
+        return lines;
+    }
+
+    void close() {
+        try {
+            file.close();
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package nio;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FrameDecoderTest {
+    // буфер из пула: 256 байт
+    private static final int MAX_FRAME = 256;
+
+    @Test
+    void decodesTextCommands() {
+        FrameDecoder decoder = new FrameDecoder(MAX_FRAME);
+        feed(decoder, "NAME:bob\nJOIN:room\n");
+        assertTrue(decoder.next());
+        assertEquals(Protocol.NAME, decoder.getOpcode());
+        assertEquals("bob", decoder.getText());
+        assertTrue(decoder.next());
+        assertEquals(Protocol.JOIN, decoder.getOpcode());
+        assertEquals("room", decoder.getText());
+        assertFalse(decoder.next());
+        decoder.release();
+    }
+
+    @Test
+    void waitsForTheRestOfALine() {
+        FrameDecoder decoder = new FrameDecoder(MAX_FRAME);
+        feed(decoder, "NA");
+        assertFalse(decoder.next());
+        feed(decoder, "ME:bob\r");
+        assertFalse(decoder.next());
+        feed(decoder, "\n");
+        assertTrue(decoder.next());
+        assertEquals(Protocol.NAME, decoder.getOpcode());
+        // \r перед \n отбрасывается
+        assertEquals("bob", decoder.getText());
+        decoder.release();
+    }
+
+    @Test
+    void leavesMessageBodyInBuffer() {
+        FrameDecoder decoder = new FrameDecoder(MAX_FRAME);
+        feed(decoder, "MESSAGE:привет\n");
+        assertTrue(decoder.next());
+        assertEquals(Protocol.MESSAGE, decoder.getOpcode());
+        assertNull(decoder.getText());
+        assertEquals("привет", body(decoder));
+        decoder.release();
+    }
+
+    @Test
+    void skipsLinesWithoutType() {
+        FrameDecoder decoder = new FrameDecoder(MAX_FRAME);
+        feed(decoder, "garbage\nLIST:\n");
+        assertTrue(decoder.next());
+        assertEquals(Protocol.LIST, decoder.getOpcode());
+        assertFalse(decoder.next());
+        decoder.release();
+    }
+
+    @Test
+    void discardsLineLongerThanBuffer() {
+        FrameDecoder decoder = new FrameDecoder(MAX_FRAME);
+        feed(decoder, "MESSAGE:" + "x".repeat(decoder.getBuffer().capacity() - 8));
+        assertFalse(decoder.next());
+        assertTrue(decoder.consumeOverflow());
+        assertFalse(decoder.consumeOverflow());
+        // хвост длинной строки пропускается, следующая команда разбирается
+        feed(decoder, "xxxx\nNAME:bob\n");
+        assertTrue(decoder.next());
+        assertEquals(Protocol.NAME, decoder.getOpcode());
+        assertEquals("bob", decoder.getText());
+        assertFalse(decoder.next());
+        decoder.release();
+    }
+
+    @Test
+    void decodesBinaryFrames() {
+        FrameDecoder decoder = binaryDecoder();
+        feed(decoder, frame(Protocol.NAME, utf8("bob")));
+        feed(decoder, frame(Protocol.JOIN, varint(300)));
+        feed(decoder, frame(Protocol.MESSAGE, utf8("привет")));
+        feed(decoder, frame(Protocol.LEAVE, new byte[0]));
+        assertTrue(decoder.next());
+        assertEquals(Protocol.NAME, decoder.getOpcode());
+        assertEquals("bob", decoder.getText());
+        assertTrue(decoder.next());
+        assertEquals(Protocol.JOIN, decoder.getOpcode());
+        assertEquals(300, decoder.getRoomId());
+        assertTrue(decoder.next());
+        assertEquals(Protocol.MESSAGE, decoder.getOpcode());
+        assertEquals("привет", body(decoder));
+        assertTrue(decoder.next());
+        assertEquals(Protocol.LEAVE, decoder.getOpcode());
+        assertFalse(decoder.next());
+        decoder.release();
+    }
+
+    @Test
+    void waitsForTheRestOfAFrame() {
+        FrameDecoder decoder = binaryDecoder();
+        // длина 200 - двухбайтовый varint, первая порция обрывается посреди него
+        byte[] frame = frame(Protocol.NAME, utf8("b".repeat(200)));
+        for (int i = 0; i < frame.length - 1; i++) {
+            feed(decoder, new byte[] {frame[i]});
+            assertFalse(decoder.next());
+        }
+        feed(decoder, new byte[] {frame[frame.length - 1]});
+        assertTrue(decoder.next());
+        assertEquals("b".repeat(200), decoder.getText());
+        decoder.release();
+    }
+
+    @Test
+    void skipsFrameLargerThanBuffer() {
+        FrameDecoder decoder = binaryDecoder();
+        byte[] large = frame(Protocol.NAME, utf8("x".repeat(1000)));
+        byte[] next = frame(Protocol.NAME, utf8("bob"));
+        byte[] stream = concat(large, next);
+        // кадр приходит порциями, каждая меньше буфера
+        int chunk = 100;
+        boolean decoded = false;
+        for (int offset = 0; offset < stream.length; offset += chunk) {
+            feed(decoder, Arrays.copyOfRange(stream, offset, Math.min(offset + chunk, stream.length)));
+            if (decoder.next()) {
+                decoded = true;
+                break;
+            }
+        }
+        assertTrue(decoded);
+        assertTrue(decoder.consumeOverflow());
+        assertEquals(Protocol.NAME, decoder.getOpcode());
+        assertEquals("bob", decoder.getText());
+        assertFalse(decoder.next());
+        decoder.release();
+    }
+
+    @Test
+    void rejectsOverlongFrameLength() {
+        // 2^32 - 1: не влезает в int, раньше читалось как отрицательная длина
+        FrameDecoder decoder = binaryDecoder();
+        feed(decoder, bytes(Protocol.NAME, 0xFF, 0xFF, 0xFF, 0xFF, 0x0F));
+        assertThrows(IllegalArgumentException.class, decoder::next);
+        decoder.release();
+
+        // длина с лишним нулевым байтом
+        decoder = binaryDecoder();
+        feed(decoder, bytes(Protocol.NAME, 0x83, 0x00, 'b', 'o', 'b'));
+        assertThrows(IllegalArgumentException.class, decoder::next);
+        decoder.release();
+    }
+
+    @Test
+    void switchesToBinaryAfterHandshake() {
+        FrameDecoder decoder = new FrameDecoder(MAX_FRAME);
+        // кадр может прийти в одном чтении с текстовой строкой
+        feed(decoder, concat(utf8(Protocol.BINARY_HANDSHAKE + "\n"), frame(Protocol.NAME, utf8("bob"))));
+        assertTrue(decoder.next());
+        assertEquals(Protocol.PROTO, decoder.getOpcode());
+        decoder.switchToBinary();
+        assertTrue(decoder.next());
+        assertEquals(Protocol.NAME, decoder.getOpcode());
+        assertEquals("bob", decoder.getText());
+        decoder.release();
+    }
+
+    private static FrameDecoder binaryDecoder() {
+        FrameDecoder decoder = new FrameDecoder(MAX_FRAME);
+        decoder.switchToBinary();
+        return decoder;
+    }
+
+    // [код][varint длина][тело]
+    private static byte[] frame(byte opcode, byte[] body) {
+        ByteBuffer buffer = ByteBuffer.allocate(1 + Protocol.MAX_VARINT_SIZE + body.length);
+        buffer.put(opcode);
+        Protocol.putVarint(buffer, body.length);
+        buffer.put(body);
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private static byte[] varint(int value) {
+        ByteBuffer buffer = ByteBuffer.allocate(Protocol.MAX_VARINT_SIZE);
+        Protocol.putVarint(buffer, value);
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] result = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = (byte) values[i];
+        }
+        return result;
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    private static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // как будто канал прочитал байты в буфер декодера
+    static void feed(FrameDecoder decoder, String text) {
+        feed(decoder, utf8(text));
+    }
+
+    static void feed(FrameDecoder decoder, byte[] bytes) {
+        decoder.getBuffer().put(bytes);
+    }
+
+    static String body(FrameDecoder decoder) {
+        byte[] bytes = new byte[decoder.getBodyLength()];
+        decoder.getBuffer().get(decoder.getBodyStart(), bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,130 @@
+package nio;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HistoryStoreTest {
+    private static final int SEGMENT_SIZE = 4096;
+    private static final int MAX_SEGMENTS = 4;
+    // первый сегмент комнаты: номер первого сообщения с ведущими нулями
+    private static final String FIRST_SEGMENT = String.format("%020d", 0) + ".log";
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void recoversRoomsAfterRestart() throws IOException {
+        HistoryStore store = new HistoryStore(directory, SEGMENT_SIZE, MAX_SEGMENTS);
+        RoomHistory history = store.create("room");
+        append(history, "[a] ", "one");
+        append(history, "[b] ", "two");
+        store.create("empty");
+        store.close();
+
+        store = new HistoryStore(directory, SEGMENT_SIZE, MAX_SEGMENTS);
+        Map<String, RoomHistory> recovered = store.recover();
+        assertEquals(2, recovered.size());
+        history = recovered.get("room");
+        assertEquals(2, history.getNextSeq());
+        assertMessages(history.read(0, Long.MAX_VALUE), "[a] one", "[b] two");
+        assertEquals(0, recovered.get("empty").getNextSeq());
+        // новая комната не занимает каталог старой
+        store.create("other");
+        store.close();
+        store = new HistoryStore(directory, SEGMENT_SIZE, MAX_SEGMENTS);
+        assertEquals(3, store.recover().size());
+        store.close();
+    }
+
+    @Test
+    void dropsTruncatedLastRecord() throws IOException {
+        HistoryStore store = new HistoryStore(directory, SEGMENT_SIZE, MAX_SEGMENTS);
+        RoomHistory history = store.create("room");
+        append(history, "[a] ", "one");
+        append(history, "[a] ", "two");
+        append(history, "[a] ", "three");
+        store.close();
+
+        // файл оборвался посреди третьей записи: длина записана, тело - нет
+        int thirdRecord = record("[a] one") + record("[a] two");
+        try (FileChannel channel = FileChannel.open(segment("room-1"), StandardOpenOption.WRITE)) {
+            channel.truncate(thirdRecord + 4 + 2);
+        }
+
+        store = new HistoryStore(directory, SEGMENT_SIZE, MAX_SEGMENTS);
+        history = store.recover().get("room");
+        assertEquals(2, history.getNextSeq());
+        assertMessages(history.read(0, Long.MAX_VALUE), "[a] one", "[a] two");
+        // запись продолжается с номера оборванного сообщения
+        assertEquals(2, append(history, "[a] ", "again"));
+        assertMessages(history.read(0, Long.MAX_VALUE), "[a] one", "[a] two", "[a] again");
+        store.close();
+    }
+
+    @Test
+    void dropsRecordWithoutLength() throws IOException {
+        HistoryStore store = new HistoryStore(directory, SEGMENT_SIZE, MAX_SEGMENTS);
+        RoomHistory history = store.create("room");
+        append(history, "[a] ", "one");
+        store.close();
+
+        // падение до записи длины: тело на месте, длина - 0
+        int secondRecord = record("[a] one");
+        try (FileChannel channel = FileChannel.open(segment("room-1"), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap("[a] lost".getBytes(StandardCharsets.UTF_8)), secondRecord + 4);
+        }
+
+        store = new HistoryStore(directory, SEGMENT_SIZE, MAX_SEGMENTS);
+        history = store.recover().get("room");
+        assertEquals(1, history.getNextSeq());
+        // новое сообщение пишется поверх недописанного
+        append(history, "[a] ", "two");
+        assertMessages(history.read(0, Long.MAX_VALUE), "[a] one", "[a] two");
+        store.close();
+    }
+
+    @Test
+    void refusesDirectoryInUse() throws IOException {
+        HistoryStore store = new HistoryStore(directory, SEGMENT_SIZE, MAX_SEGMENTS);
+        assertThrows(IOException.class, () -> new HistoryStore(directory, SEGMENT_SIZE, MAX_SEGMENTS));
+        store.close();
+        new HistoryStore(directory, SEGMENT_SIZE, MAX_SEGMENTS).close();
+    }
+
+    private static long append(RoomHistory history, String head, String text) throws IOException {
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        return history.append(head.getBytes(StandardCharsets.UTF_8), ByteBuffer.wrap(body), 0, body.length);
+    }
+
+    // [int длина][сообщение]
+    private static int record(String message) {
+        return 4 + message.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private Path segment(String roomDirectory) {
+        Path file = directory.resolve(roomDirectory).resolve(FIRST_SEGMENT);
+        assertTrue(file.toFile().isFile());
+        return file;
+    }
+
+    private static void assertMessages(List<RoomHistory.Entry> entries, String... messages) {
+        assertEquals(messages.length, entries.size());
+        for (int i = 0; i < messages.length; i++) {
+            assertEquals(i, entries.get(i).getSeq());
+            assertEquals(messages[i], entries.get(i).getMessage());
+        }
+    }
+}
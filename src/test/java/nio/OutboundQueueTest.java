@@ -0,0 +1,136 @@
+package nio;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutboundQueueTest {
+    // "hello\n"
+    private static final int FRAME_SIZE = 6;
+
+    @Test
+    void queuesUpToHighWatermark() {
+        OutboundQueue queue = new OutboundQueue(3 * FRAME_SIZE, FRAME_SIZE, OutboundQueue.OverflowPolicy.DROP, 0);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(OutboundQueue.OfferResult.QUEUED, offer(queue));
+        }
+        assertEquals(3 * FRAME_SIZE, queue.getQueuedBytes());
+        assertEquals(0, queue.getDroppedFrames());
+        queue.clear();
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    void dropPolicyDropsUntilLowWatermark() throws Exception {
+        OutboundQueue queue = new OutboundQueue(3 * FRAME_SIZE, FRAME_SIZE, OutboundQueue.OverflowPolicy.DROP, 0);
+        for (int i = 0; i < 3; i++) {
+            offer(queue);
+        }
+        assertEquals(OutboundQueue.OfferResult.DROPPED, offer(queue));
+        assertEquals(1, queue.getDroppedFrames());
+
+        // клиент забрал один кадр: место есть, но до нижней отметки еще не дошли
+        Sink sink = new Sink(FRAME_SIZE);
+        assertFalse(queue.flushTo(sink, Long.MAX_VALUE));
+        assertEquals(2 * FRAME_SIZE, queue.getQueuedBytes());
+        assertEquals(OutboundQueue.OfferResult.DROPPED, offer(queue));
+        assertEquals(2, queue.getDroppedFrames());
+
+        // опустились до нижней отметки - снова принимаем
+        assertFalse(queue.flushTo(sink, Long.MAX_VALUE));
+        assertEquals(FRAME_SIZE, queue.getQueuedBytes());
+        assertEquals(OutboundQueue.OfferResult.QUEUED, offer(queue));
+        assertEquals(2, queue.getDroppedFrames());
+        queue.clear();
+    }
+
+    @Test
+    void disconnectPolicyReportsOverflow() {
+        OutboundQueue queue = new OutboundQueue(2 * FRAME_SIZE, FRAME_SIZE,
+                OutboundQueue.OverflowPolicy.DISCONNECT, 0);
+        offer(queue);
+        offer(queue);
+        assertEquals(OutboundQueue.OfferResult.OVERFLOW, offer(queue));
+        assertEquals(2 * FRAME_SIZE, queue.getQueuedBytes());
+        assertEquals(0, queue.getDroppedFrames());
+        queue.clear();
+    }
+
+    @Test
+    void flushRespectsByteLimit() throws Exception {
+        OutboundQueue queue = new OutboundQueue(1024, 512, OutboundQueue.OverflowPolicy.DROP, 0);
+        for (int i = 0; i < 4; i++) {
+            offer(queue);
+        }
+        Sink sink = new Sink(Integer.MAX_VALUE);
+        assertFalse(queue.flushTo(sink, 2 * FRAME_SIZE));
+        assertEquals(2 * FRAME_SIZE, sink.written);
+        assertTrue(queue.flushTo(sink, Long.MAX_VALUE));
+        assertEquals(4 * FRAME_SIZE, sink.written);
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    void rejectsLowWatermarkAboveHigh() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new OutboundQueue(10, 20, OutboundQueue.OverflowPolicy.DROP, 0));
+    }
+
+    // очередь берет свою ссылку на кадр, нашу отпускаем сразу
+    private static OutboundQueue.OfferResult offer(OutboundQueue queue) {
+        SharedFrame frame = SharedFrame.encode("hello");
+        try {
+            return queue.offer(frame);
+        } finally {
+            frame.release();
+        }
+    }
+
+    // канал, который за одну запись принимает не больше perWrite байт, как заполненный сокет
+    private static final class Sink implements GatheringByteChannel {
+        private final int perWrite;
+        private long written = 0;
+
+        Sink(int perWrite) {
+            this.perWrite = perWrite;
+        }
+
+        @Override
+        public long write(ByteBuffer[] sources, int offset, int length) {
+            long total = 0;
+            for (int i = offset; i < offset + length && total < perWrite; i++) {
+                ByteBuffer source = sources[i];
+                int count = (int) Math.min(source.remaining(), perWrite - total);
+                source.position(source.position() + count);
+                total += count;
+            }
+            written += total;
+            return total;
+        }
+
+        @Override
+        public long write(ByteBuffer[] sources) {
+            return write(sources, 0, sources.length);
+        }
+
+        @Override
+        public int write(ByteBuffer source) {
+            return (int) write(new ByteBuffer[] {source}, 0, 1);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package nio;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ProtocolTest {
+    @Test
+    void varintRoundTrip() {
+        int[] values = {0, 1, 127, 128, 300, 16383, 16384, Integer.MAX_VALUE};
+        for (int value : values) {
+            ByteBuffer buffer = ByteBuffer.allocate(Protocol.MAX_VARINT_SIZE);
+            Protocol.putVarint(buffer, value);
+            assertEquals(Protocol.varintSize(value), buffer.position());
+            assertEquals(value, Protocol.getVarint(buffer, 0, buffer.position()));
+            // без последнего байта - значение еще не пришло
+            assertEquals(-1, Protocol.getVarint(buffer, 0, buffer.position() - 1));
+        }
+    }
+
+    @Test
+    void rejectsVarintAboveIntMax() {
+        // 2^31 и 2^32 - 1
+        assertThrows(IllegalArgumentException.class,
+                () -> Protocol.getVarint(bytes(0x80, 0x80, 0x80, 0x80, 0x08), 0, 5));
+        assertThrows(IllegalArgumentException.class,
+                () -> Protocol.getVarint(bytes(0xFF, 0xFF, 0xFF, 0xFF, 0x0F), 0, 5));
+        // пятый байт с битом продолжения
+        assertThrows(IllegalArgumentException.class,
+                () -> Protocol.getVarint(bytes(0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0x01), 0, 6));
+    }
+
+    @Test
+    void rejectsNonCanonicalVarint() {
+        assertThrows(IllegalArgumentException.class,
+                () -> Protocol.getVarint(bytes(0x80, 0x00), 0, 2));
+        assertThrows(IllegalArgumentException.class,
+                () -> Protocol.getVarint(bytes(0x81, 0x80, 0x00), 0, 3));
+    }
+
+    private static ByteBuffer bytes(int... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length);
+        for (int value : values) {
+            buffer.put((byte) value);
+        }
+        return buffer;
+    }
+}
@@ -0,0 +1,112 @@
+package nio;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimingWheelTest {
+    private static final long TICK_MILLIS = 100;
+    private static final long TICK_NANOS = TICK_MILLIS * 1_000_000;
+
+    private final List<Connection> connections = new ArrayList<>();
+    private final List<Connection> expired = new ArrayList<>();
+
+    @AfterEach
+    void closeConnections() throws IOException {
+        for (Connection connection : connections) {
+            connection.getChannel().close();
+            connection.releaseBuffers();
+        }
+    }
+
+    @Test
+    void firesNotBeforeDeadline() throws IOException {
+        TimingWheel wheel = new TimingWheel(TICK_MILLIS, 0);
+        Connection connection = connection();
+        // срок посреди тика округляется вверх
+        wheel.schedule(connection, ticks(2) + TICK_NANOS / 2);
+        wheel.advance(ticks(2), expired::add);
+        assertTrue(expired.isEmpty());
+        wheel.advance(ticks(3), expired::add);
+        assertEquals(List.of(connection), expired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void cascadesFromUpperLevels() throws IOException {
+        TimingWheel wheel = new TimingWheel(TICK_MILLIS, 0);
+        // уровень 0 - до 64 тиков, 1 - до 64^2, 2 - до 64^3, дальше - 3
+        long[] deadlines = {5, 64 + 3, 64 * 64 + 7, 64 * 64 * 64 + 11};
+        List<Connection> scheduled = new ArrayList<>();
+        for (long deadline : deadlines) {
+            Connection connection = connection();
+            wheel.schedule(connection, ticks(deadline));
+            scheduled.add(connection);
+        }
+        assertEquals(deadlines.length, wheel.size());
+        for (int i = 0; i < deadlines.length; i++) {
+            wheel.advance(ticks(deadlines[i] - 1), expired::add);
+            assertEquals(i, expired.size());
+            wheel.advance(ticks(deadlines[i]), expired::add);
+            assertEquals(scheduled.subList(0, i + 1), expired);
+        }
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void cascadesAfterWheelHasTurned() throws IOException {
+        TimingWheel wheel = new TimingWheel(TICK_MILLIS, 0);
+        // уровень выбирается по расстоянию от текущего тика, а ячейка - по битам срока
+        wheel.advance(ticks(100), expired::add);
+        Connection connection = connection();
+        wheel.schedule(connection, ticks(100 + 64 * 64 + 30));
+        wheel.advance(ticks(100 + 64 * 64 + 29), expired::add);
+        assertTrue(expired.isEmpty());
+        wheel.advance(ticks(100 + 64 * 64 + 30), expired::add);
+        assertEquals(List.of(connection), expired);
+    }
+
+    @Test
+    void rescheduleAndCancelReplaceDeadline() throws IOException {
+        TimingWheel wheel = new TimingWheel(TICK_MILLIS, 0);
+        Connection moved = connection();
+        Connection cancelled = connection();
+        wheel.schedule(moved, ticks(10));
+        wheel.schedule(moved, ticks(200));
+        wheel.schedule(cancelled, ticks(10));
+        wheel.cancel(cancelled);
+        wheel.cancel(cancelled);
+        assertEquals(1, wheel.size());
+        wheel.advance(ticks(199), expired::add);
+        assertTrue(expired.isEmpty());
+        wheel.advance(ticks(200), expired::add);
+        assertEquals(List.of(moved), expired);
+    }
+
+    @Test
+    void reportsTimeToNextDeadline() throws IOException {
+        TimingWheel wheel = new TimingWheel(TICK_MILLIS, 0);
+        assertEquals(0, wheel.millisToNextDeadline(0));
+        wheel.schedule(connection(), ticks(3));
+        assertEquals(3 * TICK_MILLIS, wheel.millisToNextDeadline(0));
+        assertEquals(TICK_MILLIS / 2, wheel.millisToNextDeadline(ticks(2) + TICK_NANOS / 2));
+    }
+
+    private static long ticks(long count) {
+        return count * TICK_NANOS;
+    }
+
+    // колесу нужен только сам объект соединения, канал не подключаем
+    private Connection connection() throws IOException {
+        Connection connection = new Connection(SocketChannel.open(), null);
+        connections.add(connection);
+        return connection;
+    }
+}
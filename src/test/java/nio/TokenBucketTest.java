@@ -0,0 +1,66 @@
+package nio;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TokenBucketTest {
+    // 10 в секунду: токен раз в 100 мс
+    private static final long TOKEN_NANOS = 100_000_000L;
+
+    @Test
+    void allowsBurstThenLimits() {
+        TokenBucket bucket = new TokenBucket(10, 3, 0);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(bucket.tryTake(0));
+        }
+        assertFalse(bucket.tryTake(0));
+        assertEquals(TOKEN_NANOS, bucket.nanosToNextToken(0));
+    }
+
+    @Test
+    void refillsWithElapsedTime() {
+        TokenBucket bucket = new TokenBucket(10, 3, 0);
+        for (int i = 0; i < 3; i++) {
+            bucket.tryTake(0);
+        }
+        assertFalse(bucket.tryTake(TOKEN_NANOS - 1));
+        assertEquals(1, bucket.nanosToNextToken(TOKEN_NANOS - 1));
+        assertTrue(bucket.tryTake(TOKEN_NANOS));
+        assertFalse(bucket.tryTake(TOKEN_NANOS));
+        // частичный запас не теряется между проверками
+        assertFalse(bucket.tryTake(TOKEN_NANOS + TOKEN_NANOS / 2));
+        assertTrue(bucket.tryTake(2 * TOKEN_NANOS));
+    }
+
+    @Test
+    void refillStopsAtBurst() {
+        TokenBucket bucket = new TokenBucket(10, 3, 0);
+        for (int i = 0; i < 3; i++) {
+            bucket.tryTake(0);
+        }
+        // долгая пауза дает не больше burst токенов
+        long later = 60 * 1_000_000_000L;
+        for (int i = 0; i < 3; i++) {
+            assertTrue(bucket.tryTake(later));
+        }
+        assertFalse(bucket.tryTake(later));
+    }
+
+    @Test
+    void ignoresTimeGoingBack() {
+        TokenBucket bucket = new TokenBucket(10, 1, 5 * TOKEN_NANOS);
+        assertTrue(bucket.tryTake(5 * TOKEN_NANOS));
+        assertFalse(bucket.tryTake(0));
+        assertTrue(bucket.tryTake(6 * TOKEN_NANOS));
+    }
+
+    @Test
+    void zeroBurstAllowsOneEvent() {
+        TokenBucket bucket = new TokenBucket(10, 0, 0);
+        assertTrue(bucket.tryTake(0));
+        assertFalse(bucket.tryTake(0));
+    }
+}